@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import geometry_msgs.TransformStamped;
+
+import org.ros.message.MessageFactory;
+import org.ros.message.Time;
+import org.ros.node.NodeConfiguration;
+
+/**
+ * Helpers shared by the tf benchmarks: creation of messages and filling of listeners with synthetic data.
+ * All data is deterministic, so that results are comparable across runs and commits.
+ */
+public class TfBenchmarks {
+    
+    /** Order in which time stamps are inserted */
+    public enum StampOrder {
+        /** Every stamp is newer than the previous one */
+        IN_ORDER,
+        /** Stamps arrive shuffled within a window of OUT_OF_ORDER_WINDOW periods */
+        OUT_OF_ORDER
+    }
+    
+    /** Time at which lookups are done, relative to the buffered data */
+    public enum LookupTime {
+        /** Halfway between two stored stamps, in the middle of the buffer */
+        INTERPOLATE,
+        /** Half a period past the newest stored stamp */
+        EXTRAPOLATE,
+        /** Exactly the newest stored stamp */
+        EXACT
+    }
+    
+    /** Number of periods over which stamps are shuffled for StampOrder.OUT_OF_ORDER */
+    public static final int OUT_OF_ORDER_WINDOW = 8;
+    
+    /** Start of the synthetic time line, in nanoseconds */
+    public static final long START_TIME = 1000L * 1000000000L;
+    
+    private static MessageFactory messageFactory;
+    
+    /**
+     * Returns a message factory that does not need a running master.
+     */
+    public static synchronized MessageFactory getMessageFactory() {
+        if (messageFactory == null) {
+            messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+        }
+        return messageFactory;
+    }
+    
+    /**
+     * Creates a transform message from parent to child frame with time stamp stamp (in nanoseconds).
+     * The transform depends on the stamp and the edge, so that interpolation does real work.
+     */
+    public static TransformStamped newTransform(String parentID, String childID, long stamp, int edge) {
+        TransformStamped msg = getMessageFactory().newFromType(TransformStamped._TYPE);
+        msg.getHeader().setFrameId(parentID);
+        msg.setChildFrameId(childID);
+        msg.getHeader().setStamp(Time.fromNano(stamp));
+        setValue(msg, stamp, edge);
+        return msg;
+    }
+    
+    /**
+     * Sets the time stamp and the matching synthetic transform of msg, reusing its Time object.
+     */
+    public static void setStamp(TransformStamped msg, long stamp, int edge) {
+        Time time = msg.getHeader().getStamp();
+        time.secs = (int) (stamp / 1000000000L);
+        time.nsecs = (int) (stamp % 1000000000L);
+        setValue(msg, stamp, edge);
+    }
+    
+    private static void setValue(TransformStamped msg, long stamp, int edge) {
+        double t = stamp * 1e-9;
+        double yaw = 0.1 * edge + 0.01 * t;
+        msg.getTransform().getTranslation().setX(1.0 + 0.001 * t);
+        msg.getTransform().getTranslation().setY(0.5 * edge);
+        msg.getTransform().getTranslation().setZ(0.0);
+        msg.getTransform().getRotation().setX(0.0);
+        msg.getTransform().getRotation().setY(0.0);
+        msg.getTransform().getRotation().setZ(Math.sin(yaw / 2));
+        msg.getTransform().getRotation().setW(Math.cos(yaw / 2));
+    }
+    
+    /**
+     * Returns the time stamp of the i-th insert at the given period (in nanoseconds) and order.
+     * Out of order stamps are a fixed permutation of the in order stamps within each window.
+     */
+    public static long stamp(long i, long period, StampOrder order) {
+        if (order == StampOrder.OUT_OF_ORDER) {
+            long window = i / OUT_OF_ORDER_WINDOW;
+            long offset = i % OUT_OF_ORDER_WINDOW;
+            // odd multiplier: a permutation of 0 .. OUT_OF_ORDER_WINDOW-1
+            i = window * OUT_OF_ORDER_WINDOW + (offset * 5 + 3) % OUT_OF_ORDER_WINDOW;
+        }
+        return START_TIME + i * period;
+    }
+    
+    /**
+     * Fills listener with samples inserts per edge of the given shape, published at rateHz in order.
+     * Returns the time stamp of the newest inserted data.
+     */
+    public static long fill(TfListener listener, TreeShape shape, int frames, double rateHz, int samples) {
+        int[][] edges = shape.edges(frames);
+        long period = (long) (1e9 / rateHz);
+        long stamp = START_TIME;
+        for(int i = 0; i < samples; i++) {
+            stamp = START_TIME + i * period;
+            for(int e = 0; e < edges.length; e++) {
+                listener.setTransform(newTransform(TreeShape.frameID(edges[e][0]), TreeShape.frameID(edges[e][1]),
+                                                   stamp, e));
+            }
+        }
+        return stamp;
+    }
+    
+    /**
+     * Returns the lookup time (in nanoseconds) for data in [START_TIME, newest] at the given period.
+     */
+    public static long lookupTime(LookupTime mode, long newest, long period) {
+        switch (mode) {
+            case INTERPOLATE:
+                long middle = START_TIME + ((newest - START_TIME) / period / 2) * period;
+                return middle + period / 2;
+            case EXTRAPOLATE:
+                return newest + period / 2;
+            default:
+                return newest;
+        }
+    }
+    
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import geometry_msgs.TransformStamped;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ros.tf.TfBenchmarks.StampOrder;
+
+/**
+ * Measures TfListener.setTransform: one insert per invocation, cycling over the edges of the graph with
+ * stamps advancing at the configured rate; setTransforms inserts one sample of all edges per invocation, as
+ * the listener does for a tf message. The listener is prefilled with a full buffer, so the
+ * measurement includes pruning of old data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TfListenerInsertBenchmark {
+    
+    @Param({"CHAIN", "WIDE", "MULTI_PARENT"})
+    public TreeShape shape;
+    
+    @Param({"8", "64"})
+    public int frames;
+    
+    /** Publish rate per edge */
+    @Param({"10", "100"})
+    public double rateHz;
+    
+    /** Length of the prefilled history, in seconds */
+    @Param({"10"})
+    public double bufferSeconds;
+    
+    @Param({"IN_ORDER", "OUT_OF_ORDER"})
+    public StampOrder order;
+    
+    private TfListener listener;
+    private TransformStamped[] messages;
+    private List<TransformStamped> batch;
+    private long period;
+    private long sample;
+    private int edge;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        listener = new TfListener();
+        period = (long) (1e9 / rateHz);
+        int samples = (int) Math.ceil(bufferSeconds * rateHz);
+        TfBenchmarks.fill(listener, shape, frames, rateHz, samples);
+        // continue after the prefilled data, one window later so out of order stamps are not too old
+        sample = samples + TfBenchmarks.OUT_OF_ORDER_WINDOW;
+        
+        int[][] edges = shape.edges(frames);
+        messages = new TransformStamped[edges.length];
+        for(int e = 0; e < edges.length; e++) {
+            messages[e] = TfBenchmarks.newTransform(TreeShape.frameID(edges[e][0]), TreeShape.frameID(edges[e][1]),
+                                                    TfBenchmarks.START_TIME, e);
+        }
+        batch = Arrays.asList(messages);
+        edge = 0;
+    }
+    
+    @Benchmark
+    public void setTransform() {
+        TransformStamped msg = messages[edge];
+        TfBenchmarks.setStamp(msg, TfBenchmarks.stamp(sample, period, order), edge);
+        listener.setTransform(msg);
+        if (++edge == messages.length) {
+            edge = 0;
+            sample++;
+        }
+    }
+    
+    @Benchmark
+    public int setTransforms() {
+        long stamp = TfBenchmarks.stamp(sample++, period, order);
+        for(int e = 0; e < messages.length; e++) {
+            TfBenchmarks.setStamp(messages[e], stamp, e);
+        }
+        return listener.setTransforms(batch, false);
+    }
+    
+}
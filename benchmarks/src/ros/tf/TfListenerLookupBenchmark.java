@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.ros.message.Duration;
+import org.ros.message.Time;
+
+import ros.tf.TfBenchmarks.LookupTime;
+
+/**
+ * Measures lookups on a prefilled TfListener: lookupTransform by frame name and by frame handle, the
+ * uncached graph search (lookupLists) and canTransform, at interpolated, extrapolated and exactly stored times.
+ * The series benchmarks compare lookupTransformSeries over the buffered history with one lookup per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TfListenerLookupBenchmark {
+    
+    @Param({"CHAIN", "WIDE", "MULTI_PARENT"})
+    public TreeShape shape;
+    
+    @Param({"8", "64"})
+    public int frames;
+    
+    /** Publish rate per edge */
+    @Param({"10", "100"})
+    public double rateHz;
+    
+    /** Length of the buffered history, in seconds */
+    @Param({"1", "10"})
+    public double bufferSeconds;
+    
+    @Param({"INTERPOLATE", "EXTRAPOLATE", "EXACT"})
+    public LookupTime lookupTime;
+    
+    private TfListener listener;
+    private String targetID;
+    private String sourceID;
+    private Frame targetFrame;
+    private Frame sourceFrame;
+    private Time time;
+    private long timeNsecs;
+    private Time seriesStart;
+    private Time seriesEnd;
+    private Duration seriesStep;
+    private final StampedTransform out = StampedTransform.getIdentity();
+    private final LinkedList<TransformStorage> inverseTransforms = new LinkedList<TransformStorage>();
+    private final LinkedList<TransformStorage> forwardTransforms = new LinkedList<TransformStorage>();
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        listener = new TfListener();
+        long period = (long) (1e9 / rateHz);
+        int samples = Math.max(2, (int) Math.ceil(bufferSeconds * rateHz));
+        long newest = TfBenchmarks.fill(listener, shape, frames, rateHz, samples);
+        
+        targetID = TreeShape.frameID(shape.target(frames));
+        sourceID = TreeShape.frameID(shape.source(frames));
+        targetFrame = listener.getFrame(targetID);
+        sourceFrame = listener.getFrame(sourceID);
+        timeNsecs = TfBenchmarks.lookupTime(lookupTime, newest, period);
+        time = Time.fromNano(timeNsecs);
+        seriesStart = Time.fromNano(TfBenchmarks.START_TIME);
+        seriesEnd = Time.fromNano(newest);
+        seriesStep = Duration.fromNano(period);
+        
+        if (!listener.lookupTransform(targetFrame, sourceFrame, time, out)) {
+            throw new IllegalStateException("Lookup fails for " + shape + " with " + frames + " frames");
+        }
+    }
+    
+    @Benchmark
+    public StampedTransform lookupTransformByName() {
+        listener.lookupTransform(targetID, sourceID, time, out);
+        return out;
+    }
+    
+    @Benchmark
+    public StampedTransform lookupTransformByHandle() {
+        listener.lookupTransform(targetFrame, sourceFrame, time, out);
+        return out;
+    }
+    
+    @Benchmark
+    public StampedTransform lookupTransformAllocating() {
+        return listener.lookupTransform(targetID, sourceID, time);
+    }
+    
+    @Benchmark
+    public boolean lookupLists() {
+        inverseTransforms.clear();
+        forwardTransforms.clear();
+        return listener.lookupLists(targetFrame, sourceFrame, timeNsecs, inverseTransforms, forwardTransforms);
+    }
+    
+    @Benchmark
+    public boolean canTransform() {
+        return listener.canTransform(targetFrame, sourceFrame, time);
+    }
+    
+    @Benchmark
+    public TransformSeries lookupTransformSeries() {
+        return listener.lookupTransformSeries(targetFrame, sourceFrame, seriesStart, seriesEnd, seriesStep);
+    }
+    
+    @Benchmark
+    public StampedTransform lookupTransformPerSample() {
+        long step = seriesStep.totalNsecs();
+        for(long t = seriesStart.totalNsecs(); t <= seriesEnd.totalNsecs(); t += step) {
+            listener.lookupTransform(targetFrame, sourceFrame, Time.fromNano(t), out);
+        }
+        return out;
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ros.tf.TfBenchmarks.LookupTime;
+import ros.tf.TfBenchmarks.StampOrder;
+
+/**
+ * Measures a single edge buffer: TimeCache.insertData with a full buffer of the configured length, and
+ * TimeCache.getData at interpolated, extrapolated and exactly stored times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeCacheBenchmark {
+    
+    /** Number of transforms in the buffer */
+    @Param({"16", "256", "4096"})
+    public int bufferLength;
+    
+    @Param({"100"})
+    public double rateHz;
+    
+    @Param({"IN_ORDER", "OUT_OF_ORDER"})
+    public StampOrder order;
+    
+    @Param({"INTERPOLATE", "EXTRAPOLATE", "EXACT"})
+    public LookupTime lookupTime;
+    
+    private TimeCache cache;
+    private long period;
+    private long sample;
+    private long time;
+    private final TransformStorage out = new TransformStorage(new Vector3d(), new Quat4d(0, 0, 0, 1), 0, null, null);
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        period = (long) (1e9 / rateHz);
+        cache = new TimeCache(bufferLength * period, null, null);
+        long newest = 0;
+        for(sample = 0; sample < bufferLength; sample++) {
+            newest = TfBenchmarks.stamp(sample, period, StampOrder.IN_ORDER);
+            insert(newest);
+        }
+        sample += TfBenchmarks.OUT_OF_ORDER_WINDOW;
+        time = TfBenchmarks.lookupTime(lookupTime, newest, period);
+    }
+    
+    private void insert(long stamp) {
+        double t = stamp * 1e-9;
+        double yaw = 0.01 * t;
+        cache.insertData(stamp, 1.0 + 0.001 * t, 0.5, 0.0, 0.0, 0.0, Math.sin(yaw / 2), Math.cos(yaw / 2));
+    }
+    
+    @Benchmark
+    public void insertData() {
+        insert(TfBenchmarks.stamp(sample++, period, order));
+    }
+    
+    @Benchmark
+    public TransformStorage getData() {
+        cache.getData(time, out);
+        return out;
+    }
+    
+    @Benchmark
+    public TransformStorage getDataAllocating() {
+        return cache.getData(time);
+    }
+    
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures TransformStorage.interpolate between two stored transforms, in between (interpolation) and
+ * beyond (extrapolation) their stamps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransformStorageBenchmark {
+    
+    /** Lookup time as a fraction of the interval between the two transforms */
+    @Param({"0.5", "1.5"})
+    public double ratio;
+    
+    private TransformStorage t1;
+    private TransformStorage t2;
+    private long time;
+    
+    @Setup
+    public void setUp() {
+        long period = 10000000L;
+        t1 = new TransformStorage(new Vector3d(1.0, 0.5, 0.0), new Quat4d(0, 0, Math.sin(0.05), Math.cos(0.05)),
+                                  TfBenchmarks.START_TIME, null, null);
+        t2 = new TransformStorage(new Vector3d(1.1, 0.5, 0.0), new Quat4d(0, 0, Math.sin(0.06), Math.cos(0.06)),
+                                  TfBenchmarks.START_TIME + period, null, null);
+        time = TfBenchmarks.START_TIME + (long) (ratio * period);
+    }
+    
+    @Benchmark
+    public TransformStorage interpolate() {
+        return TransformStorage.interpolate(t1, t2, time);
+    }
+    
+}
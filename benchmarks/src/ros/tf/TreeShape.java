@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.ArrayList;
+
+/**
+ * Shapes of tf graphs used by the benchmarks. Frames are named "frame0" .. "frameN-1", where frame0 is
+ * the root. Each shape also defines the pair of frames that is looked up, chosen to cover the longest
+ * path in the graph.
+ */
+public enum TreeShape {
+    
+    /** Deep chain: frame i is the child of frame i-1. The lookup spans the whole chain. */
+    CHAIN {
+        @Override
+        void addEdges(int frames, ArrayList<int[]> edges) {
+            for(int i = 1; i < frames; i++) {
+                edges.add(new int[] {i - 1, i});
+            }
+        }
+        
+        @Override
+        int source(int frames) {
+            return frames - 1;
+        }
+        
+        @Override
+        int target(int frames) {
+            return 0;
+        }
+    },
+    
+    /** Wide tree: all frames are children of the root. The lookup goes from one leaf to another. */
+    WIDE {
+        @Override
+        void addEdges(int frames, ArrayList<int[]> edges) {
+            for(int i = 1; i < frames; i++) {
+                edges.add(new int[] {0, i});
+            }
+        }
+        
+        @Override
+        int source(int frames) {
+            return frames - 1;
+        }
+        
+        @Override
+        int target(int frames) {
+            return 1;
+        }
+    },
+    
+    /**
+     * Chain in which every other frame also has a second parent two levels up, so that the search has
+     * to choose between multiple paths. The lookup spans the whole graph.
+     */
+    MULTI_PARENT {
+        @Override
+        void addEdges(int frames, ArrayList<int[]> edges) {
+            for(int i = 1; i < frames; i++) {
+                edges.add(new int[] {i - 1, i});
+                if (i >= 2 && i % 2 == 0) {
+                    edges.add(new int[] {i - 2, i});
+                }
+            }
+        }
+        
+        @Override
+        int source(int frames) {
+            return frames - 1;
+        }
+        
+        @Override
+        int target(int frames) {
+            return 0;
+        }
+    };
+    
+    /**
+     * Adds the edges of a graph with the given number of frames to edges, as {parent, child} index pairs.
+     */
+    abstract void addEdges(int frames, ArrayList<int[]> edges);
+    
+    /** Returns the index of the source frame of the benchmarked lookup. */
+    abstract int source(int frames);
+    
+    /** Returns the index of the target frame of the benchmarked lookup. */
+    abstract int target(int frames);
+    
+    /**
+     * Returns the edges of a graph with the given number of frames, as {parent, child} index pairs.
+     */
+    public int[][] edges(int frames) {
+        ArrayList<int[]> edges = new ArrayList<int[]>();
+        addEdges(frames, edges);
+        return edges.toArray(new int[edges.size()][]);
+    }
+    
+    /**
+     * Returns the name of the frame with the given index.
+     */
+    public static String frameID(int index) {
+        return "/frame" + index;
+    }
+    
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the dirty tiles reported by MapCells, which decide which tiles MapTiles converts again.
+ */
+public class MapCellsTest {
+    
+    private static final int TILE = MapCells.TILE_SIZE;
+    /** 3 x 2 tiles on level 0, the last column and row partial */
+    private static final int WIDTH = 2 * TILE + 100;
+    private static final int HEIGHT = TILE + 50;
+    
+    private byte[] data;
+    private MapCells cells;
+    
+    @Before
+    public void setUp() {
+        data = new byte[WIDTH * HEIGHT];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            int value = random.nextInt(3);
+            data[i] = (byte) (value == 0 ? 0 : value == 1 ? 100 : -1);
+        }
+        cells = new MapCells(WIDTH, HEIGHT);
+        boolean[] dirty = cells.set(data, 0);
+        assertEquals(6, dirty.length);
+        assertEquals(6, MapCells.count(dirty));
+        cells.downsample(dirty);
+    }
+    
+    /** Changes the cell at (x, y) between free and occupied */
+    private void flip(int x, int y) {
+        data[y * WIDTH + x] = (byte) (data[y * WIDTH + x] == 0 ? 100 : 0);
+    }
+    
+    @Test
+    public void levelsHalveUntilOneTile() {
+        assertEquals(3, cells.getLevelCount());
+        assertEquals(3, cells.getTileColumns(0));
+        assertEquals(2, cells.getTileRows(0));
+        assertEquals((WIDTH + 1) / 2, cells.getLevelWidth(1));
+        assertEquals((HEIGHT + 1) / 2, cells.getLevelHeight(1));
+        assertEquals(1, cells.getTileColumns(2));
+        assertEquals(1, cells.getTileRows(2));
+    }
+    
+    @Test
+    public void unchangedDataHasNoDirtyTiles() {
+        assertEquals(0, MapCells.count(cells.update(data.clone(), 0)));
+    }
+    
+    @Test
+    public void changedCellMarksItsTile() {
+        flip(TILE + 5, TILE + 3);
+        boolean[] dirty = cells.update(data, 0);
+        assertEquals(1, MapCells.count(dirty));
+        assertTrue(dirty[3 + 1]);
+        assertArrayEquals(data, cells.getCells(0));
+    }
+    
+    @Test
+    public void changesOnTileCornersMarkEachTile() {
+        flip(TILE - 1, TILE - 1);
+        flip(TILE, TILE);
+        flip(WIDTH - 1, HEIGHT - 1);
+        boolean[] dirty = cells.update(data, 0);
+        assertEquals(3, MapCells.count(dirty));
+        assertTrue(dirty[0]);
+        assertTrue(dirty[4]);
+        assertTrue(dirty[5]);
+    }
+    
+    @Test
+    public void regionUpdateMarksOnlyChangedTiles() {
+        // a 4x4 region across the four tiles around (TILE, TILE), changed in the bottom right tile only
+        int x = TILE - 2;
+        int y = TILE - 2;
+        byte[] region = new byte[16];
+        for (int j = 0; j < 4; j++) {
+            for (int i = 0; i < 4; i++) {
+                region[j * 4 + i] = data[(y + j) * WIDTH + x + i];
+            }
+        }
+        region[15] = (byte) (region[15] == 0 ? 100 : 0);
+        boolean[] dirty = cells.update(ChannelBuffers.wrappedBuffer(region), x, y, 4, 4);
+        assertEquals(1, MapCells.count(dirty));
+        assertTrue(dirty[4]);
+        assertEquals(region[15], cells.getCells(0)[(y + 3) * WIDTH + x + 3]);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void regionOutsideOfMapIsRejected() {
+        cells.update(ChannelBuffers.wrappedBuffer(new byte[4]), WIDTH - 1, 0, 2, 2);
+    }
+    
+    @Test
+    public void downsampledLevelsMatchFullRebuild() {
+        // one changed cell in each tile of level 0
+        for (int row = 0; row < 2; row++) {
+            for (int column = 0; column < 3; column++) {
+                flip(column * TILE + 7, row * TILE + 11);
+            }
+        }
+        boolean[][] levelDirty = cells.downsample(cells.update(data, 0));
+        assertEquals(6, MapCells.count(levelDirty[0]));
+        assertEquals(2, MapCells.count(levelDirty[1]));
+        assertTrue(levelDirty[2][0]);
+        
+        MapCells rebuilt = new MapCells(WIDTH, HEIGHT);
+        rebuilt.downsample(rebuilt.set(data, 0));
+        for (int level = 0; level < cells.getLevelCount(); level++) {
+            assertArrayEquals("level " + level, rebuilt.getCells(level), cells.getCells(level));
+        }
+    }
+    
+    @Test
+    public void downsamplingKeepsTheMostOccupiedCell() {
+        // two tiles wide, so that level 1 exists; its first cell covers cells 0, 1, w and w + 1
+        int w = 2 * TILE;
+        byte[] grid = new byte[2 * w];
+        grid[1] = -1;
+        MapCells small = new MapCells(w, 2);
+        assertEquals(2, small.getLevelCount());
+        small.downsample(small.set(grid, 0));
+        assertEquals(0, small.getCells(1)[0]);
+        
+        grid[w] = 100;
+        boolean[][] levelDirty = small.downsample(small.update(grid, 0));
+        assertTrue(levelDirty[1][0]);
+        assertEquals(100, small.getCells(1)[0]);
+        
+        assertFalse(small.downsample(small.update(grid, 0))[1][0]);
+    }
+}
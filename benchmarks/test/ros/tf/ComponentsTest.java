@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.message.Time;
+
+/**
+ * Tests of the connected components of the tf graph (isConnected) and of lookups that they reject.
+ */
+public class ComponentsTest {
+    
+    private static final long SECOND = 1000000000L;
+    
+    private TfListener listener;
+    private RigidTransform identity = new RigidTransform();
+    
+    @Before
+    public void setUp() {
+        listener = new TfListener();
+    }
+    
+    private void addEdge(String parent, String child) {
+        listener.setTransform(listener.registerFrame(parent), listener.registerFrame(child), SECOND, identity, false);
+    }
+    
+    private boolean isConnected(String frame1, String frame2) {
+        return listener.isConnected(listener.registerFrame(frame1), listener.registerFrame(frame2));
+    }
+    
+    @Test
+    public void framesOfOneTreeAreConnected() {
+        addEdge("/map", "/odom");
+        addEdge("/odom", "/base");
+        addEdge("/base", "/laser");
+        addEdge("/base", "/camera");
+        assertTrue(isConnected("/laser", "/camera"));
+        assertTrue(isConnected("/map", "/camera"));
+        assertTrue(isConnected("/laser", "/laser"));
+    }
+    
+    @Test
+    public void separateTreesAreNotConnectedUntilJoined() {
+        addEdge("/a0", "/a1");
+        addEdge("/a1", "/a2");
+        addEdge("/b0", "/b1");
+        addEdge("/b1", "/b2");
+        assertFalse(isConnected("/a2", "/b2"));
+        assertFalse(isConnected("/a0", "/unknown"));
+        
+        StampedTransform out = StampedTransform.getIdentity();
+        assertFalse(listener.lookupTransform(listener.registerFrame("/a2"), listener.registerFrame("/b2"),
+                                             Time.fromNano(SECOND), out));
+        assertEquals(TfMetrics.FailureReason.NOT_CONNECTED, listener.getLastLookupFailure());
+        
+        addEdge("/a1", "/b0");
+        assertTrue(isConnected("/a2", "/b2"));
+        assertTrue(listener.lookupTransform(listener.registerFrame("/a2"), listener.registerFrame("/b2"),
+                                            Time.fromNano(SECOND), out));
+    }
+    
+    @Test
+    public void edgesAddedDirectlyThroughFramesAreFound() {
+        addEdge("/a0", "/a1");
+        Frame a1 = listener.registerFrame("/a1");
+        Frame b0 = listener.registerFrame("/b0");
+        assertFalse(listener.isConnected(a1, b0));
+        b0.insertData(new TransformStorage(new Vector3d(), new Quat4d(0, 0, 0, 1), SECOND, a1, b0));
+        assertTrue(listener.isConnected(a1, b0));
+    }
+    
+    @Test
+    public void framesOfAnotherOriginAreNotConnected() {
+        addEdge("/map", "/odom");
+        Frame foreign = new Frame("/odom", 10 * SECOND);
+        assertEquals(-1, foreign.getHandle());
+        assertFalse(listener.isConnected(foreign, listener.registerFrame("/map")));
+        assertFalse(listener.isConnected(listener.registerFrame("/map"), foreign));
+        // lookups fall back to the graph search instead of failing
+        StampedTransform out = StampedTransform.getIdentity();
+        assertFalse(listener.lookupTransform(listener.registerFrame("/map"), foreign, Time.fromNano(SECOND), out));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void insertingWithFramesOfAnotherOriginFails() {
+        listener.setTransform(listener.registerFrame("/map"), new Frame("/odom", 10 * SECOND), SECOND, identity, false);
+    }
+    
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ros.message.Duration;
+import org.ros.message.Time;
+
+/**
+ * Tests of recording a TfListener with TfRecorder and replaying the log with TfReplay.
+ */
+public class TfRecorderTest {
+    
+    private static final long SECOND = 1000000000L;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File file;
+    private TfListener listener;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("tf.log");
+        listener = new TfListener();
+    }
+    
+    private void insert(String parent, String child, long stamp, double x, double yaw) {
+        RigidTransform transform = new RigidTransform(new Quat4d(0, 0, Math.sin(yaw / 2), Math.cos(yaw / 2)),
+                                                      new Vector3d(x, 0, 0));
+        listener.setTransform(listener.registerFrame(parent), listener.registerFrame(child), stamp, transform, false);
+    }
+    
+    /**
+     * Records a few edges, a static edge and the storage settings into file, and returns the number of
+     * recorded transforms.
+     */
+    private long record() throws IOException {
+        TfRecorder recorder = new TfRecorder(file);
+        listener.setRecorder(recorder);
+        listener.setDefaultStorageTime(Duration.fromNano(5 * SECOND));
+        listener.setStorageTime("/map", "*", Duration.fromNano(2 * SECOND));
+        listener.setMemoryBudget(1 << 20);
+        for(int i = 0; i < 100; i++) {
+            long stamp = SECOND + i * SECOND / 10;
+            insert("/map", "/odom", stamp, 0.1 * i, 0.01 * i);
+            insert("/odom", "/base", stamp, 0.05 * i, -0.02 * i);
+        }
+        insert("/base", "/laser", SECOND, 0.2, 0.5);
+        listener.setStatic("/base", "/laser", true);
+        // too old for the buffer of the edge, rejected by the listener
+        insert("/map", "/odom", SECOND, 0, 0);
+        listener.setRecorder(null);
+        recorder.close();
+        assertEquals(0, recorder.getDroppedCount());
+        return recorder.getRecordCount();
+    }
+    
+    private void assertSameTransforms(TfListener expected, TfListener actual) {
+        for(long t = 0; t < 12 * SECOND; t += SECOND / 4) {
+            StampedTransform e = expected.lookupTransform("/map", "/laser", Time.fromNano(t));
+            StampedTransform a = actual.lookupTransform("/map", "/laser", Time.fromNano(t));
+            assertNotNull(e);
+            assertNotNull(a);
+            assertTrue("at " + t, e.getTransform().epsilonEquals(a.getTransform(), 0));
+        }
+    }
+    
+    private TfMetrics.EdgeSnapshot edge(TfListener listener, String parent, String child) {
+        for(TfMetrics.EdgeSnapshot edge : listener.getMetrics().edges) {
+            if (edge.parentFrameID.equals(parent) && edge.childFrameID.equals(child)) return edge;
+        }
+        throw new AssertionError("No edge " + parent + " -> " + child);
+    }
+    
+    @Test
+    public void replayReproducesTheBuffers() throws IOException {
+        long recorded = record();
+        TfListener replayed = new TfListener();
+        TfReplay.Result result = new TfReplay(file).replay(replayed, TfReplay.AS_FAST_AS_POSSIBLE);
+        assertTrue(result.isComplete());
+        assertEquals(recorded, result.transformCount);
+        assertSameTransforms(listener, replayed);
+        assertEquals(listener.getMemoryBudget(), replayed.getMemoryBudget());
+        for(String[] edge : new String[][] { { "/map", "/odom" }, { "/odom", "/base" }, { "/base", "/laser" } }) {
+            TfMetrics.EdgeSnapshot e = edge(listener, edge[0], edge[1]);
+            TfMetrics.EdgeSnapshot a = edge(replayed, edge[0], edge[1]);
+            assertEquals(e.isStatic, a.isStatic);
+            assertEquals(e.storageTime, a.storageTime);
+            assertEquals(e.bufferDepth, a.bufferDepth);
+            assertEquals(e.rejectedCount, a.rejectedCount);
+        }
+        assertTrue(edge(replayed, "/base", "/laser").isStatic);
+        assertEquals(2 * SECOND, edge(replayed, "/map", "/odom").storageTime);
+        assertEquals(5 * SECOND, edge(replayed, "/odom", "/base").storageTime);
+    }
+    
+    @Test
+    public void truncatedLogStopsAtTheLastCompleteRecord() throws IOException {
+        long recorded = record();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        TfReplay.Result result = new TfReplay(file).replay(new TfListener(), TfReplay.AS_FAST_AS_POSSIBLE);
+        assertFalse(result.endReached);
+        assertFalse(result.isComplete());
+        assertEquals(recorded - 1, result.transformCount);
+    }
+    
+    @Test
+    public void replayStopsAtUnknownFrameHandles() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(TfRecorder.MAGIC);
+            out.writeInt(TfRecorder.VERSION);
+            out.writeByte(TfRecorder.FRAME_RECORD);
+            out.writeInt(0);
+            out.writeUTF("/map");
+            // refers to frame 1, which has no frame record
+            out.writeByte(TfRecorder.TRANSFORM_RECORD);
+            out.writeLong(0);
+            out.writeLong(SECOND);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeByte(0);
+            for(int i = 0; i < 7; i++) {
+                out.writeDouble(i == 6 ? 1 : 0);
+            }
+        } finally {
+            out.close();
+        }
+        TfListener replayed = new TfListener();
+        TfReplay.Result result = new TfReplay(file).replay(replayed, TfReplay.AS_FAST_AS_POSSIBLE);
+        assertFalse(result.endReached);
+        assertEquals(0, result.transformCount);
+        assertNotNull(replayed.getFrame("/map"));
+    }
+    
+    @Test
+    public void replayStopsAtFrameRecordsOutOfOrder() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(TfRecorder.MAGIC);
+            out.writeInt(TfRecorder.VERSION);
+            out.writeByte(TfRecorder.FRAME_RECORD);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeUTF("/map");
+        } finally {
+            out.close();
+        }
+        TfReplay.Result result = new TfReplay(file).replay(new TfListener(), TfReplay.AS_FAST_AS_POSSIBLE);
+        assertFalse(result.endReached);
+        assertEquals(0, result.transformCount);
+    }
+    
+}
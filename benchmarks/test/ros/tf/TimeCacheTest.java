@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the ring buffer of a TimeCache: interpolation, extrapolation and static edges.
+ */
+public class TimeCacheTest {
+    
+    private static final long SECOND = 1000000000L;
+    private static final double EPSILON = 1e-9;
+    
+    private Frame parent, child;
+    private TimeCache cache;
+    private TransformStorage out;
+    
+    @Before
+    public void setUp() {
+        parent = new Frame("/parent", 10 * SECOND);
+        child = new Frame("/child", 10 * SECOND);
+        cache = new TimeCache(10 * SECOND, parent, child);
+        out = new TransformStorage(new Vector3d(), new Quat4d(), 0, parent, child);
+    }
+    
+    /** Inserts a transform with translation (x, 0, 0) and a rotation of yaw radians about z */
+    private void insert(long stamp, double x, double yaw) {
+        assertTrue(cache.insertData(stamp, x, 0, 0, 0, 0, Math.sin(yaw / 2), Math.cos(yaw / 2)));
+    }
+    
+    private void assertTransform(double x, double yaw) {
+        assertEquals(x, out.translation.x, EPSILON);
+        assertEquals(0, out.translation.y, EPSILON);
+        assertEquals(Math.sin(yaw / 2), out.rotation.z, EPSILON);
+        assertEquals(Math.cos(yaw / 2), out.rotation.w, EPSILON);
+    }
+    
+    @Test
+    public void emptyBufferHasNoData() {
+        assertFalse(cache.getData(SECOND, out));
+        assertEquals(-1, cache.getNewestTimeStamp());
+    }
+    
+    @Test
+    public void singleTransformIsReturnedAtAllTimes() {
+        insert(SECOND, 1, 0.5);
+        assertTrue(cache.getData(0, out));
+        assertTransform(1, 0.5);
+        assertTrue(cache.getData(5 * SECOND, out));
+        assertTransform(1, 0.5);
+    }
+    
+    @Test
+    public void interpolatesBetweenNeighbours() {
+        insert(SECOND, 0, 0);
+        insert(2 * SECOND, 2, 0.4);
+        insert(3 * SECOND, 10, 1.0);
+        assertTrue(cache.getData(SECOND + SECOND / 4, out));
+        assertTransform(0.5, 0.1);
+        assertTrue(cache.getData(2 * SECOND + SECOND / 2, out));
+        assertTransform(6, 0.7);
+    }
+    
+    @Test
+    public void returnsStoredTransformAtItsStamp() {
+        insert(SECOND, 0, 0);
+        insert(2 * SECOND, 2, 0.4);
+        assertTrue(cache.getData(2 * SECOND, out));
+        assertTransform(2, 0.4);
+        assertEquals(2 * SECOND, out.getTimeStamp());
+    }
+    
+    @Test
+    public void extrapolatesFromTheOutermostTransforms() {
+        insert(SECOND, 0, 0);
+        insert(2 * SECOND, 1, 0.2);
+        insert(3 * SECOND, 3, 0.2);
+        // before the oldest transform: from the oldest two
+        assertTrue(cache.getData(SECOND / 2, out));
+        assertTransform(-0.5, -0.1);
+        // after the newest transform: from the newest two
+        assertTrue(cache.getData(4 * SECOND, out));
+        assertTransform(5, 0.2);
+    }
+    
+    @Test
+    public void keepsOutOfOrderDataSorted() {
+        insert(3 * SECOND, 3, 0);
+        insert(SECOND, 1, 0);
+        insert(2 * SECOND, 2, 0);
+        assertEquals(SECOND, cache.getOldestTimeStamp());
+        assertEquals(3 * SECOND, cache.getNewestTimeStamp());
+        assertTrue(cache.getData(SECOND + SECOND / 2, out));
+        assertTransform(1.5, 0);
+    }
+    
+    @Test
+    public void evictsDataOlderThanTheStorageTime() {
+        for (int i = 0; i <= 20; i++) {
+            insert(i * SECOND, i, 0);
+        }
+        assertEquals(10 * SECOND, cache.getOldestTimeStamp());
+        assertEquals(11, cache.size());
+    }
+    
+    @Test
+    public void staticEdgeHoldsTheLatestValueAtAllTimes() {
+        insert(SECOND, 0, 0);
+        insert(2 * SECOND, 2, 0);
+        cache.setStatic(true);
+        assertTrue(cache.isStatic());
+        insert(3 * SECOND, 5, 0.3);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getData(0, out));
+        assertTransform(5, 0.3);
+        assertEquals(0, out.getTimeStamp());
+    }
+    
+    @Test
+    public void staticDetectionIsOffByDefault() {
+        for (int i = 0; i < 20; i++) {
+            insert(i * SECOND / 10, 1, 0);
+        }
+        assertFalse(cache.isStatic());
+    }
+    
+    @Test
+    public void staticDetectionKeepsTheHistoryOfAnEdgeThatStopped() {
+        cache.setStaticDetectionSamples(5);
+        for (int i = 0; i <= 10; i++) {
+            insert(i * SECOND / 10, i * 0.1, 0);
+        }
+        for (int i = 11; i <= 30; i++) {
+            insert(i * SECOND / 10, 1, 0);
+        }
+        assertFalse(cache.isStatic());
+        assertTrue(cache.getData(SECOND / 4, out));
+        assertTransform(0.25, 0);
+    }
+    
+    @Test
+    public void staticDetectionMarksAnEdgeThatNeverChanged() {
+        cache.setStaticDetectionSamples(5);
+        for (int i = 0; i < 8; i++) {
+            insert(i * SECOND / 10, 0.2, 0);
+        }
+        assertTrue(cache.isStatic());
+        insert(SECOND, 0.3, 0);
+        assertFalse(cache.isStatic());
+    }
+    
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.message.Duration;
+import org.ros.message.Time;
+
+/**
+ * Tests that lookupTransformSeries gives the same transforms as a lookupTransform per sample.
+ */
+public class TransformSeriesTest {
+    
+    private static final long SECOND = 1000000000L;
+    private static final double EPSILON = 1e-9;
+    
+    private TfListener listener;
+    private Frame map, odom, base;
+    
+    @Before
+    public void setUp() {
+        listener = new TfListener();
+        map = listener.registerFrame("/map");
+        odom = listener.registerFrame("/odom");
+        base = listener.registerFrame("/base");
+        RigidTransform t = new RigidTransform();
+        for (int i = 0; i <= 10; i++) {
+            // odom drifts slowly, base moves and turns
+            t.setIdentity();
+            t.tx = 0.01 * i;
+            listener.setTransform(map, odom, SECOND + i * SECOND / 2, t, false);
+            t.tx = 0.3 * i;
+            t.ty = 0.1 * i * i;
+            t.qz = Math.sin(0.05 * i);
+            t.qw = Math.cos(0.05 * i);
+            listener.setTransform(odom, base, SECOND + i * SECOND / 3, t, false);
+        }
+    }
+    
+    /** Checks every sample of the series from start to end with the given step against lookupTransform */
+    private void assertMatchesLookups(long start, long end, long step) {
+        TransformSeries series = listener.lookupTransformSeries(map, base, Time.fromNano(start), Time.fromNano(end),
+                                                                Duration.fromNano(step));
+        assertNotNull(series);
+        assertEquals((end - start) / step + 1, series.size());
+        RigidTransform fromSeries = new RigidTransform();
+        StampedTransform lookup = StampedTransform.getIdentity();
+        for (int i = 0; i < series.size(); i++) {
+            assertTrue(listener.lookupTransform(map, base, Time.fromNano(series.getStamp(i)), lookup));
+            series.get(i, fromSeries);
+            assertTrue("sample at " + series.getStamp(i) + ": " + fromSeries + " != " + lookup.getTransform(),
+                       fromSeries.epsilonEquals(lookup.getTransform(), EPSILON));
+        }
+    }
+    
+    @Test
+    public void matchesLookupsWithinTheBuffer() {
+        assertMatchesLookups(SECOND, 4 * SECOND, SECOND / 7);
+    }
+    
+    @Test
+    public void matchesLookupsAfterTheNewestTransform() {
+        assertMatchesLookups(8 * SECOND, 9 * SECOND, SECOND / 10);
+    }
+    
+    @Test
+    public void matchesLookupsBeforeTheOldestTransform() {
+        assertMatchesLookups(0, SECOND / 2, SECOND / 10);
+    }
+    
+    @Test
+    public void matchesLookupsAcrossTheEndOfTheBuffer() {
+        assertMatchesLookups(SECOND / 2, 8 * SECOND, SECOND / 4);
+    }
+    
+}
@@ -0,0 +1,79 @@
+/*
+ * Software License Agreement (BSD License)
+ *
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of Willow Garage, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package ros.android.util;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import ros.tf.TfRecorder;
+
+/**
+ * Helpers for recording tf data on a device, for later replay with ros.tf.TfReplay.
+ */
+public class TfRecording {
+
+  /** File name extension of tf logs */
+  public static final String EXTENSION = ".tflog";
+
+  /**
+   * Returns the directory for tf logs, creating it if it does not exist: ros/tf on the sdcard if it is
+   * mounted and writable (see SdCardSetup.isReady()), otherwise tf in the app's local storage.
+   */
+  public static File getRecordingDir(Context context) {
+    File dir;
+    if (SdCardSetup.isReady()) {
+      dir = new File(SdCardSetup.getRosDir(), "tf");
+    } else {
+      dir = new File(context.getFilesDir(), "tf");
+    }
+    if (!dir.exists())
+      dir.mkdirs();
+    return dir;
+  }
+
+  /**
+   * Creates a recorder that writes to a new, time-stamped file in the recording directory.
+   * Attach it with TfListener.setRecorder() and close it when done.
+   */
+  public static TfRecorder newRecorder(Context context) throws IOException {
+    String name = "tf-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + EXTENSION;
+    return new TfRecorder(new File(getRecordingDir(context), name));
+  }
+}
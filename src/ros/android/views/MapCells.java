@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Cells of an OccupancyGrid map as a pyramid of levels, divided into fixed-size tiles. Level 0 holds the
+ * map at full resolution, and each next level halves the resolution, until the whole map fits in a single
+ * tile. A downsampled cell takes the highest occupancy value of the cells it covers (unknown counting as
+ * lowest), so that thin walls stay visible when zoomed out.
+ * 
+ * New grid data is compared with the cells of level 0 one tile at a time; the tiles that changed are
+ * reported as dirty, and only those are downsampled again. This class only handles the cells, so it does
+ * not depend on Android; {@link MapTiles} converts the dirty tiles into bitmaps. Updates must not run
+ * concurrently with each other.
+ */
+public class MapCells {
+	/** Width and height of a tile, in cells */
+	public static final int TILE_SIZE = 256;
+
+	private final int width, height;
+	/** Cells per level, row by row; level 0 is a copy of the grid data */
+	private final byte[][] cells;
+	private final int[] levelWidths, levelHeights;
+	/** Number of tile columns and rows per level */
+	private final int[] tileColumns, tileRows;
+
+	/** Row buffer of update(), which is not called concurrently */
+	private byte[] rowBuffer = new byte[0];
+
+	/**
+	 * Creates the levels of a grid with the given size, with all cells 0.
+	 */
+	public MapCells(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		int levels = 1;
+		for(int w = width, h = height; w > TILE_SIZE || h > TILE_SIZE; w = (w + 1) / 2, h = (h + 1) / 2) {
+			levels++;
+		}
+		cells = new byte[levels][];
+		levelWidths = new int[levels];
+		levelHeights = new int[levels];
+		tileColumns = new int[levels];
+		tileRows = new int[levels];
+		for(int level = 0; level < levels; level++) {
+			int w = (level == 0) ? width : (levelWidths[level - 1] + 1) / 2;
+			int h = (level == 0) ? height : (levelHeights[level - 1] + 1) / 2;
+			levelWidths[level] = w;
+			levelHeights[level] = h;
+			cells[level] = new byte[w * h];
+			tileColumns[level] = (w + TILE_SIZE - 1) / TILE_SIZE;
+			tileRows[level] = (h + TILE_SIZE - 1) / TILE_SIZE;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getLevelCount() {
+		return cells.length;
+	}
+
+	public int getLevelWidth(int level) {
+		return levelWidths[level];
+	}
+
+	public int getLevelHeight(int level) {
+		return levelHeights[level];
+	}
+
+	public int getTileColumns(int level) {
+		return tileColumns[level];
+	}
+
+	public int getTileRows(int level) {
+		return tileRows[level];
+	}
+
+	/**
+	 * Returns the cells of the given level, row by row. The array is owned by this object and must not be
+	 * modified.
+	 */
+	public byte[] getCells(int level) {
+		return cells[level];
+	}
+
+	/**
+	 * Replaces all cells of level 0 with the grid data stored row by row in data, and returns the dirty
+	 * tiles of level 0, which are all tiles.
+	 */
+	public boolean[] set(ChannelBuffer data) {
+		data.getBytes(0, cells[0], 0, width * height);
+		return allDirty();
+	}
+
+	/**
+	 * Same as set(ChannelBuffer), with the grid data stored row by row in data starting at offset.
+	 */
+	public boolean[] set(byte[] data, int offset) {
+		System.arraycopy(data, offset, cells[0], 0, width * height);
+		return allDirty();
+	}
+
+	/**
+	 * Returns dirty flags that mark all tiles of level 0.
+	 */
+	private boolean[] allDirty() {
+		boolean[] dirty = new boolean[tileColumns[0] * tileRows[0]];
+		Arrays.fill(dirty, true);
+		return dirty;
+	}
+
+	/**
+	 * Updates level 0 with the new grid data of the same size, stored row by row in data starting at
+	 * offset. Returns the dirty tiles of level 0: the tiles whose cells changed.
+	 */
+	public boolean[] update(byte[] data, int offset) {
+		boolean[] dirty = new boolean[tileColumns[0] * tileRows[0]];
+		for(int y = 0; y < height; y++) {
+			compareRow(data, offset + y * width, 0, y, width, dirty);
+		}
+		return dirty;
+	}
+
+	/**
+	 * Updates the region (x, y, w, h) of level 0 with the given cells, stored row by row in data (w cells
+	 * per row). Returns the dirty tiles of level 0: the tiles whose cells changed.
+	 */
+	public boolean[] update(ChannelBuffer data, int x, int y, int w, int h) {
+		if(x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Region " + w + "x" + h + " at " + x + "," + y + " outside of " + width + "x" + height + " map");
+		}
+		if(rowBuffer.length < w) {
+			rowBuffer = new byte[w];
+		}
+		byte[] row = rowBuffer;
+		boolean[] dirty = new boolean[tileColumns[0] * tileRows[0]];
+		for(int j = 0; j < h; j++) {
+			data.getBytes(j * w, row, 0, w);
+			compareRow(row, 0, x, y + j, w, dirty);
+		}
+		return dirty;
+	}
+
+	/**
+	 * Compares the w cells in row starting at rowOffset with the cells of level 0 starting at (x, y), one
+	 * tile at a time, and copies the cells of the tiles that changed, marking them dirty.
+	 */
+	private void compareRow(byte[] row, int rowOffset, int x, int y, int w, boolean[] dirty) {
+		byte[] grid = cells[0];
+		int gridRow = y * width;
+		int tileRow = y / TILE_SIZE * tileColumns[0];
+		for(int start = x, end; start < x + w; start = end) {
+			end = Math.min(x + w, (start / TILE_SIZE + 1) * TILE_SIZE);
+			int tile = tileRow + start / TILE_SIZE;
+			if(dirty[tile] || !equals(row, rowOffset + start - x, grid, gridRow + start, end - start)) {
+				System.arraycopy(row, rowOffset + start - x, grid, gridRow + start, end - start);
+				dirty[tile] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the n bytes of a starting at aOffset equal those of b starting at bOffset.
+	 */
+	private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int n) {
+		for(int i = 0; i < n; i++) {
+			if(a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of dirty tiles.
+	 */
+	public static int count(boolean[] dirty) {
+		int count = 0;
+		for(boolean tileDirty : dirty) {
+			if(tileDirty) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Recomputes the downsampled levels over the given dirty tiles of level 0, and returns the dirty tiles
+	 * of all levels: the tiles covering them. Element 0 of the result is dirty itself.
+	 */
+	public boolean[][] downsample(boolean[] dirty) {
+		int columns = tileColumns[0];
+		boolean[][] levelDirty = new boolean[cells.length][];
+		levelDirty[0] = dirty;
+		for(int level = 1; level < cells.length; level++) {
+			levelDirty[level] = new boolean[tileColumns[level] * tileRows[level]];
+			for(int i = 0; i < dirty.length; i++) {
+				if(!dirty[i]) {
+					continue;
+				}
+				int x0 = (i % columns) * TILE_SIZE;
+				int y0 = (i / columns) * TILE_SIZE;
+				int x1 = Math.min(width, x0 + TILE_SIZE);
+				int y1 = Math.min(height, y0 + TILE_SIZE);
+				downsample(level, x0 >> level, y0 >> level, ((x1 - 1) >> level) + 1, ((y1 - 1) >> level) + 1);
+				levelDirty[level][(y0 >> level) / TILE_SIZE * tileColumns[level] + (x0 >> level) / TILE_SIZE] = true;
+			}
+		}
+		return levelDirty;
+	}
+
+	/**
+	 * Computes the region [x0, x1) x [y0, y1) of the given level from the level below it.
+	 */
+	private void downsample(int level, int x0, int y0, int x1, int y1) {
+		byte[] source = cells[level - 1];
+		byte[] target = cells[level];
+		int sourceWidth = levelWidths[level - 1];
+		int sourceHeight = levelHeights[level - 1];
+		int targetWidth = levelWidths[level];
+		for(int y = y0; y < y1; y++) {
+			int row0 = 2 * y * sourceWidth;
+			int row1 = (2 * y + 1 < sourceHeight) ? row0 + sourceWidth : row0;
+			for(int x = x0; x < x1; x++) {
+				int column0 = 2 * x;
+				int column1 = (2 * x + 1 < sourceWidth) ? column0 + 1 : column0;
+				// unknown is -1, so the signed maximum prefers occupied, then uncertain, then free cells
+				int value = Math.max(Math.max(source[row0 + column0], source[row0 + column1]),
+						Math.max(source[row1 + column0], source[row1 + column1]));
+				target[y * targetWidth + x] = (byte) value;
+			}
+		}
+	}
+}
@@ -30,12 +30,14 @@
 package ros.android.views;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
 import nav_msgs.GetMapRequest;
 import nav_msgs.GetMapResponse;
 import nav_msgs.OccupancyGrid;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.ros.exception.RemoteException;
 import org.ros.exception.RosException;
 import org.ros.message.MessageListener;
@@ -44,11 +46,11 @@ import org.ros.node.service.ServiceClient;
 import org.ros.node.service.ServiceResponseListener;
 import org.ros.node.topic.Subscriber;
 
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -56,12 +58,25 @@ import android.util.Log;
  */
 public class MapDisplay extends PanZoomDisplay {
 	private Subscriber<OccupancyGrid> mapSubscriber;
-	private Bitmap mapBitmap, backgroundBitmap;
+	private volatile MapTiles mapTiles;
 	private Matrix mapGridRelMap = new Matrix(); // from map metadata
 	private Paint paint = new Paint();
 	private String mapTopic = "map";
 	private boolean haveMap = false;
-	private ReentrantLock mapLock = new ReentrantLock();
+	private ReentrantLock mapLock = new ReentrantLock(); // serializes map conversions, e.g. of a stopped and a new worker
+	private MapRasterizer rasterizer = new MapRasterizer();
+	private final Object mapWorkerLock = new Object();
+	private MapWorker mapWorker; // guarded by mapWorkerLock, created on the first map
+	private OccupancyGrid pendingMap; // guarded by mapWorkerLock
+	private long pendingMapTime; // guarded by mapWorkerLock
+	private long droppedMapCount; // guarded by mapWorkerLock
+	private volatile long decodeTime, queueLatency;
+	private long mapFingerprint; // of the map shown, only used by the map worker
+	private boolean haveMapFingerprint = false;
+	private volatile long skippedMapCount;
+	private byte[] mapDataCopy = new byte[0]; // copy of grid data without a backing array, only used by the map worker
+	private byte[] mapData; // grid data read by readMap() while a map is converted, only used by the map worker
+	private int mapDataOffset;
 	private ArrayList<MapDisplayStateCallback> callbacks = new ArrayList();
 	private ConnectedNode node;
 
@@ -97,83 +112,196 @@ public class MapDisplay extends PanZoomDisplay {
 		return state;
 	}
 
-	private class MapUpdateThread extends Thread {
-		private OccupancyGrid msg;
-		private MapDisplay parent;
-
-		public MapUpdateThread(MapDisplay parent, final OccupancyGrid msg) {
-			this.msg = msg;
-			this.parent = parent;
+	/**
+	 * Single worker thread which converts the received maps. Only the latest map is kept while a map is
+	 * being converted: a newer map replaces the pending one, which is dropped.
+	 */
+	private class MapWorker extends Thread {
+		public MapWorker() {
+			super("MapDisplay map worker");
+			setDaemon(true);
 		}
 
-		/**
-		 * Populate view with new map data. This must be called in the UI
-		 * thread.
-		 */
+		@Override
 		public void run() {
-			if(msg.getInfo().getHeight() < 1 && msg.getInfo().getWidth() < 1) {
-				Log.e("MapDisplay", "Map message has no data.");
-				return;
-			}
-			if(MapDisplay.this.getState() != MapDisplay.State.STATE_WORKING) {
-				Log.i("MapDisplay", "Loading");
-				MapDisplay.this.setState(MapDisplay.State.STATE_LOADING);
-			} else {
-				Log.i("MapDisplay", "Already started, not setting state");
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while(true) {
+				OccupancyGrid msg;
+				synchronized(mapWorkerLock) {
+					while(pendingMap == null && mapWorker == this) {
+						try {
+							mapWorkerLock.wait();
+						} catch(InterruptedException e) {
+							// check whether this worker was stopped
+						}
+					}
+					if(mapWorker != this) {
+						return;
+					}
+					msg = pendingMap;
+					pendingMap = null;
+					queueLatency = SystemClock.uptimeMillis() - pendingMapTime;
+				}
+				long startTime = SystemClock.uptimeMillis();
+				mapLock.lock();
+				try {
+					updateMap(msg);
+				} catch(RuntimeException e) {
+					// a bad map must not stop the worker, or no later map would be shown
+					Log.e("MapDisplay", "Failed to convert map", e);
+				} catch(OutOfMemoryError e) {
+					Log.e("MapDisplay", "Out of memory while converting map", e);
+				} finally {
+					mapLock.unlock();
+				}
+				decodeTime = SystemClock.uptimeMillis() - startTime;
 			}
-			Log.i("MapDisplay", "handleMap() - locking thread");
-			parent.mapLock.lock();
-			Log.i("MapDisplay", "handleMap() - " + msg.getInfo().getHeight() + " by " + msg.getInfo().getWidth());
-			if(parent.backgroundBitmap != null && (parent.backgroundBitmap.getWidth() != (int) msg.getInfo().getWidth() || parent.backgroundBitmap.getHeight() != (int) msg.getInfo().getHeight())) {
-				Log.i("MapDisplay", "Recycle map");
-				parent.backgroundBitmap.recycle();
-				parent.backgroundBitmap = null;
+		}
+	}
+
+	/**
+	 * Hands the given map to the map worker, replacing any map that is still waiting for it.
+	 */
+	private void handleMap(OccupancyGrid msg) {
+		synchronized(mapWorkerLock) {
+			if(pendingMap != null) {
+				droppedMapCount++;
 			}
-			if(parent.backgroundBitmap == null) {
-				parent.backgroundBitmap = Bitmap.createBitmap((int) msg.getInfo().getWidth(), (int) msg.getInfo().getHeight(), Bitmap.Config.RGB_565);
-				Log.i("MapDisplay", "Create map");
+			pendingMap = msg;
+			pendingMapTime = SystemClock.uptimeMillis();
+			if(mapWorker == null) {
+				mapWorker = new MapWorker();
+				mapWorker.start();
 			}
+			mapWorkerLock.notifyAll();
+		}
+	}
 
-			// copy the map data into the mapBitmap.
-			int data_i = 0;
-
-			int black = Color.rgb(0, 0, 0);
-			int grey = Color.rgb(128, 128, 128);
-			int white = Color.rgb(255, 255, 255);
-			for(int y = 0; y < msg.getInfo().getHeight(); y++) {
-				for(int x = 0; x < msg.getInfo().getWidth(); x++) {
-					int cell = msg.getData().getInt(data_i);
-					data_i++;
-					switch(cell) {
-					case 100:
-						parent.backgroundBitmap.setPixel(x, y, black);
-						break;
-					case 0:
-						parent.backgroundBitmap.setPixel(x, y, white);
-						break;
-					default:
-						parent.backgroundBitmap.setPixel(x, y, grey);
-					}
-				}
-			}
+	/**
+	 * Populate view with new map data. Only called by the map worker, holding mapLock.
+	 */
+	private void updateMap(OccupancyGrid msg) {
+		if(msg.getInfo().getHeight() < 1 && msg.getInfo().getWidth() < 1) {
+			Log.e("MapDisplay", "Map message has no data.");
+			return;
+		}
+		// the same map often arrives twice (latched topic and dynamic_map service, reconnects): skip it
+		long fingerprint = readMap(msg);
+		if(haveMapFingerprint && fingerprint == mapFingerprint && mapTiles != null) {
+			mapData = null;
+			skippedMapCount++;
+			Log.i("MapDisplay", "Map unchanged, not converting it again");
+			setState(MapDisplay.State.STATE_WORKING);
+			postInvalidate();
+			return;
+		}
+		if(getState() != MapDisplay.State.STATE_WORKING) {
+			Log.i("MapDisplay", "Loading");
+			setState(MapDisplay.State.STATE_LOADING);
+		} else {
+			Log.i("MapDisplay", "Already started, not setting state");
+		}
+		Log.i("MapDisplay", "handleMap() - " + msg.getInfo().getHeight() + " by " + msg.getInfo().getWidth());
 
-			// This matrix definition presumes the map is flat on the XY plane
-			// and that there is 0 rotation. So just an offset and a scale.
-			float res = msg.getInfo().getResolution();
-			parent.mapGridRelMap.setValues(new float[] { res, 0, (float) msg.getInfo().getOrigin().getPosition().getX(), 0, res, (float) msg.getInfo().getOrigin().getPosition().getY(), 0, 0, 1 });
-			Log.i("MapDisplay", "mapGridRelMap = " + parent.mapGridRelMap.toString());
+		// This matrix definition presumes the map is flat on the XY plane
+		// and that there is 0 rotation. So just an offset and a scale.
+		float res = msg.getInfo().getResolution();
+		float[] gridRelMap = new float[] { res, 0, (float) msg.getInfo().getOrigin().getPosition().getX(), 0, res, (float) msg.getInfo().getOrigin().getPosition().getY(), 0, 0, 1 };
+		float[] currentGridRelMap = new float[9];
+		mapGridRelMap.getValues(currentGridRelMap);
 
-			Bitmap temp = parent.backgroundBitmap;
-			parent.backgroundBitmap = parent.mapBitmap;
-			parent.mapBitmap = temp;
-			parent.haveMap = true;
-			Log.i("MapDisplay", "Done");
-			MapDisplay.this.setState(MapDisplay.State.STATE_WORKING);
+		long startTime = SystemClock.uptimeMillis();
+		MapTiles tiles = mapTiles;
+		if(tiles != null && tiles.getWidth() == (int) msg.getInfo().getWidth() && tiles.getHeight() == (int) msg.getInfo().getHeight() && Arrays.equals(gridRelMap, currentGridRelMap)) {
+			// same map geometry: only convert the tiles that changed
+			int changed = tiles.update(mapData, mapDataOffset);
+			Log.i("MapDisplay", "Updated " + changed + " map tiles in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+		} else {
+			// convert the map data into tiles. The previous tiles may still be drawn, so they are
+			// left to the garbage collector instead of being recycled.
+			tiles = new MapTiles(mapData, mapDataOffset, (int) msg.getInfo().getWidth(), (int) msg.getInfo().getHeight(), rasterizer);
+			Log.i("MapDisplay", "Converted map into " + tiles.getLevelCount() + " tile levels in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+			mapGridRelMap.setValues(gridRelMap);
+			Log.i("MapDisplay", "mapGridRelMap = " + mapGridRelMap.toString());
+			mapTiles = tiles;
+		}
+		mapData = null; // may be the array of the message
+		mapFingerprint = fingerprint;
+		haveMapFingerprint = true;
+		haveMap = true;
+		Log.i("MapDisplay", "Done");
+		setState(MapDisplay.State.STATE_WORKING);
 
-			parent.mapLock.unlock();
+		postInvalidate();
+	}
 
-			parent.postInvalidate();
+	/**
+	 * Reads the grid data of the given map into mapData (starting at mapDataOffset), and returns a 64 bit
+	 * FNV-1a style hash of the size, resolution and origin and of the data. The data is hashed while it is
+	 * read, so each cell is read from the message once: a backing array is used directly, and other
+	 * buffers are copied into mapDataCopy in chunks that are hashed while they are still in the cache.
+	 */
+	private long readMap(OccupancyGrid msg) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ msg.getInfo().getWidth()) * 0x100000001b3L;
+		hash = (hash ^ msg.getInfo().getHeight()) * 0x100000001b3L;
+		hash = (hash ^ Float.floatToIntBits(msg.getInfo().getResolution())) * 0x100000001b3L;
+		hash = (hash ^ Double.doubleToLongBits(msg.getInfo().getOrigin().getPosition().getX())) * 0x100000001b3L;
+		hash = (hash ^ Double.doubleToLongBits(msg.getInfo().getOrigin().getPosition().getY())) * 0x100000001b3L;
+
+		ChannelBuffer data = msg.getData();
+		int size = msg.getInfo().getWidth() * msg.getInfo().getHeight();
+		if(data.hasArray()) {
+			mapData = data.array();
+			mapDataOffset = data.arrayOffset();
+			for(int i = mapDataOffset, end = mapDataOffset + size; i < end; i++) {
+				hash = (hash ^ (mapData[i] & 0xff)) * 0x100000001b3L;
+			}
+			return hash;
+		}
+		if(mapDataCopy.length < size) {
+			mapDataCopy = new byte[size];
+		}
+		byte[] copy = mapDataCopy;
+		for(int offset = 0; offset < size; offset += 64 * 1024) {
+			int end = Math.min(size, offset + 64 * 1024);
+			data.getBytes(offset, copy, offset, end - offset);
+			for(int i = offset; i < end; i++) {
+				hash = (hash ^ (copy[i] & 0xff)) * 0x100000001b3L;
+			}
+		}
+		mapData = copy;
+		mapDataOffset = 0;
+		return hash;
+	}
+
+	/**
+	 * Returns the number of maps that were not converted because they were identical to the map shown.
+	 */
+	public long getSkippedMapCount() {
+		return skippedMapCount;
+	}
+
+	/**
+	 * Returns the time the map worker took to convert the last map, in milliseconds.
+	 */
+	public long getDecodeTime() {
+		return decodeTime;
+	}
+
+	/**
+	 * Returns the time the last converted map waited for the map worker, in milliseconds.
+	 */
+	public long getQueueLatency() {
+		return queueLatency;
+	}
 
+	/**
+	 * Returns the number of maps that were replaced by a newer map before the map worker got to them.
+	 */
+	public long getDroppedMapCount() {
+		synchronized(mapWorkerLock) {
+			return droppedMapCount;
 		}
 	}
 
@@ -198,7 +326,7 @@ public class MapDisplay extends PanZoomDisplay {
 			client.call((GetMapRequest) node.getTopicMessageFactory().newFromType(GetMapRequest._TYPE), new ServiceResponseListener<GetMapResponse>() {
 				@Override
 				public void onSuccess(GetMapResponse message) {
-					new MapUpdateThread(MapDisplay.this, message.getMap()).start();
+					handleMap(message.getMap());
 				}
 
 				@Override
@@ -236,7 +364,7 @@ public class MapDisplay extends PanZoomDisplay {
 			@Override
 			public void onNewMessage(final OccupancyGrid msg) {
 				Log.i("MapDisplay", "Map recieved");
-				new MapUpdateThread(MapDisplay.this, msg).start();
+				handleMap(msg);
 			}
 		});
 		Log.i("MapDisplay", "Map display started");
@@ -248,16 +376,28 @@ public class MapDisplay extends PanZoomDisplay {
 			mapSubscriber.shutdown();
 		}
 		mapSubscriber = null;
+		synchronized(mapWorkerLock) {
+			// the worker finishes the map it is converting, and then exits
+			mapWorker = null;
+			pendingMap = null;
+			mapWorkerLock.notifyAll();
+		}
 		state = State.STATE_UNKNOWN;
 		node = null;
 	}
 
 	@Override
 	public void draw(Canvas canvas) {
-		Bitmap localMapBitmap = mapBitmap; // avoids race conditions
+		MapTiles localMapTiles = mapTiles; // avoids race conditions
 		// Log.i("MapDisplay", "Display map");
-		if(localMapBitmap != null && haveMap) {
-			canvas.drawBitmap(localMapBitmap, mapGridRelMap, paint);
+		if(localMapTiles != null && haveMap) {
+			// zoom in screen pixels per grid cell, to pick the tile level
+			Matrix gridRelView = getParent().getFixedRelView();
+			gridRelView.preConcat(mapGridRelMap);
+			canvas.save();
+			canvas.concat(mapGridRelMap);
+			localMapTiles.draw(canvas, gridRelView.mapRadius(1), paint);
+			canvas.restore();
 		}
 	}
 }
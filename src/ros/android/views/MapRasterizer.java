@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Converts OccupancyGrid cells into bitmap pixels. The occupancy values are mapped to colors through a
+ * 256-entry lookup table into a caller-supplied pixel buffer, which is written to the bitmap with a single
+ * setPixels call. Conversions may run on several threads at the same time, each with its own pixel buffer
+ * (see {@link MapTiles}, which splits large maps over multiple threads).
+ */
+public class MapRasterizer {
+	/** Number of cells above which conversions are split over multiple threads */
+	public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+	/** Worker threads for parallel conversion; created on first use */
+	private static ExecutorService executor;
+
+	/** Colors by occupancy value (as unsigned byte) */
+	private final int[] colors = new int[256];
+
+	/**
+	 * Creates a rasterizer which draws free cells (0) white, occupied cells (100) black, and all other
+	 * values (unknown or uncertain) grey.
+	 */
+	public MapRasterizer() {
+		setColors(Color.rgb(255, 255, 255), Color.rgb(0, 0, 0), Color.rgb(128, 128, 128));
+	}
+
+	/**
+	 * Sets the colors of free cells (0), occupied cells (100) and all other values. Must not be called while
+	 * a conversion is running.
+	 */
+	public void setColors(int free, int occupied, int other) {
+		for(int i = 0; i < colors.length; i++) {
+			colors[i] = other;
+		}
+		colors[0] = free;
+		colors[100] = occupied;
+	}
+
+	/**
+	 * Sets the color of the given occupancy value (-1 for unknown, or 0 to 100). Must not be called while
+	 * a conversion is running.
+	 */
+	public void setColor(int occupancy, int color) {
+		colors[occupancy & 0xff] = color;
+	}
+
+	/**
+	 * Converts the region (x, y, width, height) of the given cells, stored row by row with the given
+	 * stride, into the top left corner of bitmap, using pixels (at least width * height long) as buffer.
+	 */
+	public void rasterize(byte[] cells, int stride, int x, int y, int width, int height, int[] pixels, Bitmap bitmap) {
+		int[] colors = this.colors;
+		int i = 0;
+		for(int row = y; row < y + height; row++) {
+			int cell = row * stride + x;
+			for(int end = cell + width; cell < end; cell++) {
+				pixels[i++] = colors[cells[cell] & 0xff];
+			}
+		}
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+	}
+
+	/**
+	 * Returns the number of threads to use for a conversion of the given number of cells.
+	 */
+	static int threadsFor(long cells) {
+		return (cells >= PARALLEL_THRESHOLD) ? Runtime.getRuntime().availableProcessors() : 1;
+	}
+
+	/**
+	 * Returns the worker threads for parallel conversion.
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MapRasterizer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.android.views;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * OccupancyGrid map stored as a pyramid of fixed-size tile bitmaps, one per tile of its {@link MapCells}.
+ * Level 0 holds the map at full resolution, and each next level halves the resolution, until the whole
+ * map fits in a single tile.
+ * 
+ * Drawing picks the level matching the current zoom, and only draws the tiles intersecting the visible
+ * part of the canvas; no single bitmap is larger than TILE_SIZE x TILE_SIZE.
+ * 
+ * New grid data is compared with the current cells, and only the tiles that changed are converted again
+ * (see update()). Updates must not run concurrently with each other, but may run while drawing.
+ */
+public class MapTiles {
+	/** Width and height of a tile, in pixels */
+	public static final int TILE_SIZE = MapCells.TILE_SIZE;
+
+	private final MapRasterizer rasterizer;
+	private final MapCells cells;
+	/** Tiles per level, row by row */
+	private final Bitmap[][] tiles;
+
+	/** Scratch objects of draw(), which is only called from the UI thread */
+	private final Rect clip = new Rect();
+	private final RectF tileRect = new RectF();
+
+	/**
+	 * Creates the tile pyramid of the grid with the given size, stored row by row in data.
+	 */
+	public MapTiles(ChannelBuffer data, int width, int height, MapRasterizer rasterizer) {
+		this(width, height, rasterizer);
+		update(cells.set(data));
+	}
+
+	/**
+	 * Creates the tile pyramid of the grid with the given size, stored row by row in data starting at offset.
+	 */
+	public MapTiles(byte[] data, int offset, int width, int height, MapRasterizer rasterizer) {
+		this(width, height, rasterizer);
+		update(cells.set(data, offset));
+	}
+
+	/**
+	 * Creates the levels of a grid with the given size, without cells or tiles.
+	 */
+	private MapTiles(int width, int height, MapRasterizer rasterizer) {
+		this.rasterizer = rasterizer;
+		cells = new MapCells(width, height);
+		tiles = new Bitmap[cells.getLevelCount()][];
+		for(int level = 0; level < tiles.length; level++) {
+			tiles[level] = new Bitmap[cells.getTileColumns(level) * cells.getTileRows(level)];
+		}
+	}
+
+	public int getWidth() {
+		return cells.getWidth();
+	}
+
+	public int getHeight() {
+		return cells.getHeight();
+	}
+
+	public int getLevelCount() {
+		return cells.getLevelCount();
+	}
+
+	/**
+	 * Updates the map with the new grid data of the same size, stored row by row in data. Only the tiles
+	 * whose cells changed are converted again. Returns the number of changed tiles of level 0.
+	 */
+	public int update(ChannelBuffer data) {
+		return update(data, 0, 0, cells.getWidth(), cells.getHeight());
+	}
+
+	/**
+	 * Same as update(ChannelBuffer), with the grid data stored row by row in data starting at offset.
+	 */
+	public int update(byte[] data, int offset) {
+		return update(cells.update(data, offset));
+	}
+
+	/**
+	 * Updates the region (x, y, w, h) of the map with the given cells, stored row by row in data (w cells
+	 * per row). Only the tiles whose cells changed are converted again. Returns the number of changed tiles
+	 * of level 0.
+	 */
+	public int update(ChannelBuffer data, int x, int y, int w, int h) {
+		return update(cells.update(data, x, y, w, h));
+	}
+
+	/**
+	 * Recomputes the downsampled levels and the tiles of all levels that cover the given dirty tiles of
+	 * level 0. Replaced tiles are new bitmaps, so that tiles are never drawn while being converted. Returns
+	 * the number of dirty tiles.
+	 */
+	private int update(boolean[] dirty) {
+		int dirtyCount = MapCells.count(dirty);
+		if(dirtyCount == 0) {
+			return 0;
+		}
+
+		// downsample the dirty tiles level by level, and collect the tiles covering them on all levels
+		boolean[][] levelDirty = cells.downsample(dirty);
+		int count = 0;
+		for(boolean[] flags : levelDirty) {
+			count += MapCells.count(flags);
+		}
+		final int[] jobs = new int[2 * count];
+		count = 0;
+		for(int level = 0; level < levelDirty.length; level++) {
+			for(int i = 0; i < levelDirty[level].length; i++) {
+				if(levelDirty[level][i]) {
+					jobs[count++] = level;
+					jobs[count++] = i;
+				}
+			}
+		}
+
+		// convert the tiles, split over multiple threads for large updates
+		final int threads = Math.min(MapRasterizer.threadsFor((long) dirtyCount * TILE_SIZE * TILE_SIZE), count / 2);
+		if(threads <= 1) {
+			rasterizeTiles(jobs, 0, 1);
+			return dirtyCount;
+		}
+		ExecutorService executor = MapRasterizer.getExecutor();
+		Future<?>[] futures = new Future<?>[threads - 1];
+		for(int i = 1; i < threads; i++) {
+			final int first = i;
+			futures[i - 1] = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					rasterizeTiles(jobs, first, threads);
+				}
+			});
+		}
+		// the calling thread converts its share of the tiles itself
+		rasterizeTiles(jobs, 0, threads);
+		for(Future<?> future : futures) {
+			try {
+				future.get();
+			} catch(Exception e) {
+				throw new RuntimeException("Parallel map conversion failed", e);
+			}
+		}
+		return dirtyCount;
+	}
+
+	/**
+	 * Converts the tiles first, first + step, ... of the given (level, index) job list.
+	 */
+	private void rasterizeTiles(int[] jobs, int first, int step) {
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for(int i = 2 * first; i < jobs.length; i += 2 * step) {
+			int level = jobs[i];
+			int index = jobs[i + 1];
+			int levelWidth = cells.getLevelWidth(level);
+			int x = (index % cells.getTileColumns(level)) * TILE_SIZE;
+			int y = (index / cells.getTileColumns(level)) * TILE_SIZE;
+			int w = Math.min(TILE_SIZE, levelWidth - x);
+			int h = Math.min(TILE_SIZE, cells.getLevelHeight(level) - y);
+			Bitmap tile = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+			rasterizer.rasterize(cells.getCells(level), levelWidth, x, y, w, h, pixels, tile);
+			tiles[level][index] = tile;
+		}
+	}
+
+	/**
+	 * Returns the level to draw at the given zoom, the coarsest one whose pixels are not drawn larger
+	 * than a screen pixel.
+	 */
+	public int levelFor(float pixelsPerCell) {
+		int level = 0;
+		while(level + 1 < cells.getLevelCount() && (2 << level) * pixelsPerCell <= 1) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Draws the visible tiles of the level matching the given zoom (screen pixels per grid cell). The canvas
+	 * must be set up to draw in grid cell coordinates.
+	 */
+	public void draw(Canvas canvas, float pixelsPerCell, Paint paint) {
+		if(!canvas.getClipBounds(clip) || clip.right <= 0 || clip.bottom <= 0) {
+			return;
+		}
+		int level = levelFor(pixelsPerCell);
+		int span = TILE_SIZE << level;
+		int firstColumn = Math.max(0, clip.left) / span;
+		int lastColumn = Math.min(cells.getTileColumns(level) - 1, (clip.right - 1) / span);
+		int firstRow = Math.max(0, clip.top) / span;
+		int lastRow = Math.min(cells.getTileRows(level) - 1, (clip.bottom - 1) / span);
+		Bitmap[] levelTiles = tiles[level];
+		for(int row = firstRow; row <= lastRow; row++) {
+			for(int column = firstColumn; column <= lastColumn; column++) {
+				Bitmap tile = levelTiles[row * cells.getTileColumns(level) + column];
+				if(tile == null) {
+					continue;
+				}
+				float left = column * span;
+				float top = row * span;
+				tileRect.set(left, top, left + (tile.getWidth() << level), top + (tile.getHeight() << level));
+				canvas.drawBitmap(tile, null, tileRect, paint);
+			}
+		}
+	}
+}
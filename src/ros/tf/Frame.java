@@ -30,12 +30,19 @@
 
 package ros.tf;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transformation frame, containing references to all parent frames and corresponding time caches.
  * 
+ * The parent map is copy-on-write: a new edge replaces the map with an updated copy, so readers
+ * (lookups) can traverse it without locking while the writer inserts data.
+ * 
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
  */
@@ -43,22 +50,49 @@ public class Frame {
     
     /** ID of this frame. */
     private String frameID;
-    /** Map containing parent frames of this frame with corresponding time caches.*/
-    private HashMap<Frame, TimeCache> parentMap;
+    /** Compact integer handle of this frame, unique within its tf graph (-1 if not registered). */
+    private int handle;
+    /** Map containing parent frames of this frame with corresponding time caches; never modified once published.*/
+    private volatile Map<Frame, TimeCache> parentMap;
     /** Maximum storage time of time caches in nanoseconds.*/    
     private long maxStorageTime;
+    /** Counter that is incremented whenever a new parent edge is created (may be null).*/
+    private AtomicInteger topologyVersion;
+    /** Incremented by the time caches of this frame when an edge becomes static or dynamic (may be null) */
+    private AtomicInteger staticVersion;
     
     /**
      * Class constructor.
      */
     public Frame(String frameID, long maxStorageTime) {
+        this(frameID, -1, maxStorageTime, null);
+    }
+    
+    /**
+     * Class constructor. The given topology version counter (shared by all frames of a tf graph)
+     * is incremented each time a parent edge is added to this frame.
+     */
+    public Frame(String frameID, int handle, long maxStorageTime, AtomicInteger topologyVersion) {
+        this(frameID, handle, maxStorageTime, topologyVersion, topologyVersion);
+    }
+    
+    /**
+     * Class constructor. Same as above, but changes of static edges (see {@link TimeCache#setStatic(boolean)})
+     * increment the given static version counter instead of the topology version counter.
+     */
+    public Frame(String frameID, int handle, long maxStorageTime, AtomicInteger topologyVersion,
+                 AtomicInteger staticVersion) {
         this.frameID = frameID;
+        this.handle = handle;
         this.maxStorageTime = maxStorageTime;
-        parentMap = new HashMap<Frame, TimeCache>();
+        this.topologyVersion = topologyVersion;
+        this.staticVersion = staticVersion;
+        parentMap = Collections.emptyMap();
     }
     
     /**
      * Inserts transform newData into the appropriate time cache (based on frame of newData). 
+     * Must only be called by the single tf writer.
      */
     public boolean insertData(TransformStorage newData) {
         Frame childFrame = newData.getChildFrame();
@@ -68,15 +102,32 @@ public class Frame {
             return false;
         }
         
-        Frame parentFrame = newData.getParentFrame();
+        return lookupOrInsertTimeCache(newData.getParentFrame()).insertData(newData);
+    }
+    
+    /**
+     * Marks the edge from parentFrame to this frame as static (or dynamic), creating it if necessary.
+     * See {@link TimeCache#setStatic(boolean)}. Must only be called by the single tf writer.
+     */
+    public void setStatic(Frame parentFrame, boolean isStatic) {
+        lookupOrInsertTimeCache(parentFrame).setStatic(isStatic);
+    }
+    
+    /**
+     * Returns the time cache containing the transformations from parentFrame to this frame, 
+     * creating it if it does not exist yet. Must only be called by the single tf writer.
+     */
+    protected TimeCache lookupOrInsertTimeCache(Frame parentFrame) {
         TimeCache cache = parentMap.get(parentFrame);
         
         if (cache == null) {
-            cache = new TimeCache(maxStorageTime, parentFrame, childFrame);
-            parentMap.put(parentFrame, cache);
+            cache = new TimeCache(maxStorageTime, parentFrame, this, staticVersion);
+            HashMap<Frame, TimeCache> newParentMap = new HashMap<Frame, TimeCache>(parentMap);
+            newParentMap.put(parentFrame, cache);
+            parentMap = Collections.unmodifiableMap(newParentMap);
+            if (topologyVersion != null) topologyVersion.incrementAndGet();
         }
-        
-        return cache.insertData(newData);
+        return cache;
     }
     
     /**
@@ -103,6 +154,13 @@ public class Frame {
         return frameID;
     }
     
+    /**
+     * Returns the integer handle of this frame, or -1 if it is not registered with a listener.
+     */
+    public int getHandle() {
+        return handle;
+    }
+    
     /**
      * Returns the time cache containing the transformations from sourceFrame to this frame.
      */
@@ -110,6 +168,13 @@ public class Frame {
         return parentMap.get(sourceFrame);
     }
     
+    /**
+     * Returns the time caches of all parent edges of this frame.
+     */
+    public Collection<TimeCache> getTimeCaches() {
+        return parentMap.values();
+    }
+    
     /**
      * Returns a set containing references to all parent frames of this frame.
      */
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.ArrayList;
+
+/**
+ * Object that watches the edges on the path between two frames of a TfListener, and is notified by
+ * the listener whenever data is inserted on one of these edges. The listener indexes watchers by the
+ * child frames of the edges on their path, so that an insert only reaches the watchers depending on it.
+ */
+abstract class PathWatcher {
+    
+    /** Target frame of the watched path */
+    final Frame targetFrame;
+    /** Source frame of the watched path */
+    final Frame sourceFrame;
+    /** Frames under which this watcher is indexed by the listener (null if indexed as unconnected) */
+    ArrayList<Frame> indexFrames;
+    
+    /**
+     * Class constructor.
+     */
+    PathWatcher(Frame targetFrame, Frame sourceFrame) {
+        this.targetFrame = targetFrame;
+        this.sourceFrame = sourceFrame;
+    }
+    
+    /**
+     * Returns the time (in nanoseconds) at which the path is determined, for graphs with multiple paths.
+     */
+    abstract long getPathTime();
+    
+    /**
+     * Called (on the inserting thread) after data with time stamp stamp was inserted on an edge of the
+     * path, or after the topology of the graph changed.
+     */
+    abstract void edgeChanged(TfListener listener, long stamp);
+    
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Rigid transformation, represented by a unit rotation quaternion and a translation vector.
+ * 
+ * Since every tf edge is a rigid transformation, composition, inversion and application can be done in
+ * closed form on this representation, which is cheaper than the corresponding operations on a general
+ * 4x4 matrix. A transform (q, t) maps a point p to R(q) p + t.
+ */
+public class RigidTransform {
+    
+    /** Translation */
+    public double tx, ty, tz;
+    /** Rotation quaternion; must be normalized (set normalizes the rotations it is given) */
+    public double qx, qy, qz, qw;
+    
+    /**
+     * Constructs an identity transform.
+     */
+    public RigidTransform() {
+        setIdentity();
+    }
+    
+    /**
+     * Constructs a transform with the given rotation and translation.
+     */
+    public RigidTransform(Quat4d rotation, Vector3d translation) {
+        set(rotation, translation);
+    }
+    
+    /**
+     * Constructs a copy of t1.
+     */
+    public RigidTransform(RigidTransform t1) {
+        set(t1);
+    }
+    
+    /**
+     * Sets this transform to the identity.
+     */
+    public final void setIdentity() {
+        tx = ty = tz = 0;
+        qx = qy = qz = 0;
+        qw = 1;
+    }
+    
+    /**
+     * Sets this transform to the value of t1.
+     */
+    public final void set(RigidTransform t1) {
+        tx = t1.tx; ty = t1.ty; tz = t1.tz;
+        qx = t1.qx; qy = t1.qy; qz = t1.qz; qw = t1.qw;
+    }
+    
+    /**
+     * Sets this transform to the given rotation and translation.
+     */
+    public final void set(Quat4d rotation, Vector3d translation) {
+        tx = translation.x; ty = translation.y; tz = translation.z;
+        qx = rotation.x; qy = rotation.y; qz = rotation.z; qw = rotation.w;
+        normalize();
+    }
+    
+    /**
+     * Sets this transform to the rigid part of the given matrix, which is assumed to contain
+     * a rotation and translation only.
+     */
+    public final void set(Matrix4d m) {
+        Quat4d rotation = new Quat4d();
+        m.get(rotation);
+        qx = rotation.x; qy = rotation.y; qz = rotation.z; qw = rotation.w;
+        tx = m.m03; ty = m.m13; tz = m.m23;
+        normalize();
+    }
+    
+    /**
+     * Normalizes the rotation quaternion of this transform. A zero quaternion becomes the identity rotation.
+     */
+    public final void normalize() {
+        double norm = qx * qx + qy * qy + qz * qz + qw * qw;
+        if (norm == 1) return;
+        if (norm == 0) {
+            qw = 1;
+            return;
+        }
+        norm = 1 / Math.sqrt(norm);
+        qx *= norm; qy *= norm; qz *= norm; qw *= norm;
+    }
+    
+    /**
+     * Sets this transform to this * t1, i.e., first applies t1 and then this.
+     */
+    public final void mul(RigidTransform t1) {
+        mul(this, t1);
+    }
+    
+    /**
+     * Sets this transform to t1 * t2, i.e., first applies t2 and then t1. 
+     * Either argument may be this transform.
+     */
+    public final void mul(RigidTransform t1, RigidTransform t2) {
+        // translation: t1.t + R(t1.q) t2.t
+        double x = t2.tx, y = t2.ty, z = t2.tz;
+        double cx = 2 * (t1.qy * z - t1.qz * y);
+        double cy = 2 * (t1.qz * x - t1.qx * z);
+        double cz = 2 * (t1.qx * y - t1.qy * x);
+        double nx = x + t1.qw * cx + (t1.qy * cz - t1.qz * cy) + t1.tx;
+        double ny = y + t1.qw * cy + (t1.qz * cx - t1.qx * cz) + t1.ty;
+        double nz = z + t1.qw * cz + (t1.qx * cy - t1.qy * cx) + t1.tz;
+        
+        // rotation: t1.q * t2.q
+        double w = t1.qw * t2.qw - t1.qx * t2.qx - t1.qy * t2.qy - t1.qz * t2.qz;
+        double rx = t1.qw * t2.qx + t1.qx * t2.qw + t1.qy * t2.qz - t1.qz * t2.qy;
+        double ry = t1.qw * t2.qy - t1.qx * t2.qz + t1.qy * t2.qw + t1.qz * t2.qx;
+        double rz = t1.qw * t2.qz + t1.qx * t2.qy - t1.qy * t2.qx + t1.qz * t2.qw;
+        
+        tx = nx; ty = ny; tz = nz;
+        qx = rx; qy = ry; qz = rz; qw = w;
+    }
+    
+    /**
+     * Inverts this transform in place: (q, t)^-1 = (q*, -R(q*) t).
+     */
+    public final void invert() {
+        qx = -qx; qy = -qy; qz = -qz;
+        double x = tx, y = ty, z = tz;
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        tx = -(x + qw * cx + (qy * cz - qz * cy));
+        ty = -(y + qw * cy + (qz * cx - qx * cz));
+        tz = -(z + qw * cz + (qx * cy - qy * cx));
+    }
+    
+    /**
+     * Sets this transform to the inverse of t1.
+     */
+    public final void invert(RigidTransform t1) {
+        set(t1);
+        invert();
+    }
+    
+    /**
+     * Transforms point (rotation and translation) and places the result into pointOut, which may be point.
+     */
+    public final void transformPoint(Point3d point, Point3d pointOut) {
+        double x = point.x, y = point.y, z = point.z;
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        pointOut.x = x + qw * cx + (qy * cz - qz * cy) + tx;
+        pointOut.y = y + qw * cy + (qz * cx - qx * cz) + ty;
+        pointOut.z = z + qw * cz + (qx * cy - qy * cx) + tz;
+    }
+    
+    /**
+     * Transforms vector (rotation only) and places the result into vectorOut, which may be vector.
+     */
+    public final void transformVector(Vector3d vector, Vector3d vectorOut) {
+        double x = vector.x, y = vector.y, z = vector.z;
+        double cx = 2 * (qy * z - qz * y);
+        double cy = 2 * (qz * x - qx * z);
+        double cz = 2 * (qx * y - qy * x);
+        vectorOut.x = x + qw * cx + (qy * cz - qz * cy);
+        vectorOut.y = y + qw * cy + (qz * cx - qx * cz);
+        vectorOut.z = z + qw * cz + (qx * cy - qy * cx);
+    }
+    
+    /**
+     * Transforms the pose parameter (a 4x4 matrix) with this transform and places the result into poseOut,
+     * which may be the same matrix. Unlike multiplying with a matrix from get, this creates no objects.
+     */
+    public final void transformPose(Matrix4d pose, Matrix4d poseOut) {
+        double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+        double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+        double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+        double m00 = 1 - 2 * (yy + zz), m01 = 2 * (xy - wz), m02 = 2 * (xz + wy);
+        double m10 = 2 * (xy + wz), m11 = 1 - 2 * (xx + zz), m12 = 2 * (yz - wx);
+        double m20 = 2 * (xz - wy), m21 = 2 * (yz + wx), m22 = 1 - 2 * (xx + yy);
+        double a0 = pose.m00, a1 = pose.m10, a2 = pose.m20, a3 = pose.m30;
+        poseOut.m00 = m00 * a0 + m01 * a1 + m02 * a2 + tx * a3;
+        poseOut.m10 = m10 * a0 + m11 * a1 + m12 * a2 + ty * a3;
+        poseOut.m20 = m20 * a0 + m21 * a1 + m22 * a2 + tz * a3;
+        poseOut.m30 = a3;
+        a0 = pose.m01; a1 = pose.m11; a2 = pose.m21; a3 = pose.m31;
+        poseOut.m01 = m00 * a0 + m01 * a1 + m02 * a2 + tx * a3;
+        poseOut.m11 = m10 * a0 + m11 * a1 + m12 * a2 + ty * a3;
+        poseOut.m21 = m20 * a0 + m21 * a1 + m22 * a2 + tz * a3;
+        poseOut.m31 = a3;
+        a0 = pose.m02; a1 = pose.m12; a2 = pose.m22; a3 = pose.m32;
+        poseOut.m02 = m00 * a0 + m01 * a1 + m02 * a2 + tx * a3;
+        poseOut.m12 = m10 * a0 + m11 * a1 + m12 * a2 + ty * a3;
+        poseOut.m22 = m20 * a0 + m21 * a1 + m22 * a2 + tz * a3;
+        poseOut.m32 = a3;
+        a0 = pose.m03; a1 = pose.m13; a2 = pose.m23; a3 = pose.m33;
+        poseOut.m03 = m00 * a0 + m01 * a1 + m02 * a2 + tx * a3;
+        poseOut.m13 = m10 * a0 + m11 * a1 + m12 * a2 + ty * a3;
+        poseOut.m23 = m20 * a0 + m21 * a1 + m22 * a2 + tz * a3;
+        poseOut.m33 = a3;
+    }
+    
+    /**
+     * Transforms count packed points from points (starting at offset) and places the results into out
+     * (starting at outOffset), which may be the same array. The points have the given dimension: 3 for
+     * (x, y, z) triples, or 2 for (x, y) pairs in the plane z = 0 (the z component of the result is dropped).
+     * The rotation matrix is kept in local variables, so concurrent calls on the same transform are safe.
+     */
+    public final void transformPoints(double[] points, int offset, int count, int dimension, double[] out, int outOffset) {
+        double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+        double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+        double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+        double m00 = 1 - 2 * (yy + zz), m01 = 2 * (xy - wz), m02 = 2 * (xz + wy), m03 = tx;
+        double m10 = 2 * (xy + wz), m11 = 1 - 2 * (xx + zz), m12 = 2 * (yz - wx), m13 = ty;
+        if (dimension == 2) {
+            for (int i = offset, j = outOffset, end = offset + 2 * count; i < end; i += 2, j += 2) {
+                double x = points[i], y = points[i + 1];
+                out[j]     = m00 * x + m01 * y + m03;
+                out[j + 1] = m10 * x + m11 * y + m13;
+            }
+        } else if (dimension == 3) {
+            double m20 = 2 * (xz - wy), m21 = 2 * (yz + wx), m22 = 1 - 2 * (xx + yy), m23 = tz;
+            for (int i = offset, j = outOffset, end = offset + 3 * count; i < end; i += 3, j += 3) {
+                double x = points[i], y = points[i + 1], z = points[i + 2];
+                out[j]     = m00 * x + m01 * y + m02 * z + m03;
+                out[j + 1] = m10 * x + m11 * y + m12 * z + m13;
+                out[j + 2] = m20 * x + m21 * y + m22 * z + m23;
+            }
+        } else {
+            throw new IllegalArgumentException("dimension must be 2 or 3, not " + dimension);
+        }
+    }
+    
+    /**
+     * Same as transformPoints for double arrays, for packed float points.
+     */
+    public final void transformPoints(float[] points, int offset, int count, int dimension, float[] out, int outOffset) {
+        double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+        double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+        double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+        double m00 = 1 - 2 * (yy + zz), m01 = 2 * (xy - wz), m02 = 2 * (xz + wy), m03 = tx;
+        double m10 = 2 * (xy + wz), m11 = 1 - 2 * (xx + zz), m12 = 2 * (yz - wx), m13 = ty;
+        if (dimension == 2) {
+            for (int i = offset, j = outOffset, end = offset + 2 * count; i < end; i += 2, j += 2) {
+                double x = points[i], y = points[i + 1];
+                out[j]     = (float) (m00 * x + m01 * y + m03);
+                out[j + 1] = (float) (m10 * x + m11 * y + m13);
+            }
+        } else if (dimension == 3) {
+            double m20 = 2 * (xz - wy), m21 = 2 * (yz + wx), m22 = 1 - 2 * (xx + yy), m23 = tz;
+            for (int i = offset, j = outOffset, end = offset + 3 * count; i < end; i += 3, j += 3) {
+                double x = points[i], y = points[i + 1], z = points[i + 2];
+                out[j]     = (float) (m00 * x + m01 * y + m02 * z + m03);
+                out[j + 1] = (float) (m10 * x + m11 * y + m12 * z + m13);
+                out[j + 2] = (float) (m20 * x + m21 * y + m22 * z + m23);
+            }
+        } else {
+            throw new IllegalArgumentException("dimension must be 2 or 3, not " + dimension);
+        }
+    }
+    
+    /**
+     * Stores the translation of this transform in out.
+     */
+    public final void getTranslation(Vector3d out) {
+        out.x = tx; out.y = ty; out.z = tz;
+    }
+    
+    /**
+     * Stores the rotation of this transform in out.
+     */
+    public final void getRotation(Quat4d out) {
+        out.x = qx; out.y = qy; out.z = qz; out.w = qw;
+    }
+    
+    /**
+     * Stores the 4x4 matrix representing this transform in out.
+     */
+    public final void get(Matrix4d out) {
+        double xx = qx * qx, yy = qy * qy, zz = qz * qz;
+        double xy = qx * qy, xz = qx * qz, yz = qy * qz;
+        double wx = qw * qx, wy = qw * qy, wz = qw * qz;
+        out.m00 = 1 - 2 * (yy + zz); out.m01 = 2 * (xy - wz);     out.m02 = 2 * (xz + wy);     out.m03 = tx;
+        out.m10 = 2 * (xy + wz);     out.m11 = 1 - 2 * (xx + zz); out.m12 = 2 * (yz - wx);     out.m13 = ty;
+        out.m20 = 2 * (xz - wy);     out.m21 = 2 * (yz + wx);     out.m22 = 1 - 2 * (xx + yy); out.m23 = tz;
+        out.m30 = 0;                 out.m31 = 0;                 out.m32 = 0;                 out.m33 = 1;
+    }
+    
+    /**
+     * Returns true if all components of this transform and t1 differ by at most epsilon.
+     */
+    public boolean epsilonEquals(RigidTransform t1, double epsilon) {
+        return Math.abs(tx - t1.tx) <= epsilon && Math.abs(ty - t1.ty) <= epsilon && Math.abs(tz - t1.tz) <= epsilon
+            && Math.abs(qx - t1.qx) <= epsilon && Math.abs(qy - t1.qy) <= epsilon
+            && Math.abs(qz - t1.qz) <= epsilon && Math.abs(qw - t1.qw) <= epsilon;
+    }
+    
+    /**
+     * Returns a string that contains the values of this transform.
+     */
+    @Override
+    public String toString() {
+        return "[(" + tx + ", " + ty + ", " + tz + "), (" + qx + ", " + qy + ", " + qz + ", " + qw + ")]";
+    }
+    
+}
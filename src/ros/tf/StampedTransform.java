@@ -40,7 +40,8 @@ import javax.vecmath.Vector3d;
 /** 
  * Transformation stamped with time, frame ID and child frame ID. 
  *  
- * A transformation object of this class is internally represented by a 4x4 matrix.  
+ * A transformation object of this class is internally represented by a {@link RigidTransform} (rotation
+ * quaternion and translation vector). A 4x4 matrix representation is only built when requested.
  *  
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
@@ -53,8 +54,8 @@ public class StampedTransform {
     public String childFrameID;
     /** Time stamp */
     public Time timeStamp;
-    /** Transformation matrix representing the transform */ 
-    protected Matrix4d transform;
+    /** Rigid transformation representing the transform */ 
+    protected RigidTransform transform;
         
     /**
      * Class constructor.
@@ -63,13 +64,24 @@ public class StampedTransform {
         this.childFrameID = childFrameID; 
         this.frameID = frameID;
         this.timeStamp = timeStamp;        
-        this.transform = new Matrix4d(rotation, translation, 1);
+        this.transform = new RigidTransform(rotation, translation);
     }
     
     /**
-     * Class constructor.
+     * Class constructor. The matrix is assumed to represent a rigid transformation.
      */    
     public StampedTransform(Matrix4d transform, Time timeStamp, String frameID, String childFrameID) {
+        this.childFrameID = childFrameID; 
+        this.frameID = frameID;
+        this.timeStamp = timeStamp;
+        this.transform = new RigidTransform();
+        this.transform.set(transform);
+    }
+    
+    /**
+     * Class constructor.
+     */    
+    public StampedTransform(RigidTransform transform, Time timeStamp, String frameID, String childFrameID) {
         this.childFrameID = childFrameID; 
         this.frameID = frameID;
         this.timeStamp = timeStamp;
@@ -80,9 +92,35 @@ public class StampedTransform {
      * Returns an identity transformation object.
      */    
     public static StampedTransform getIdentity() {
-        Matrix4d identity = new Matrix4d();
-        identity.setIdentity();        
-        return new StampedTransform(identity, null, null, null);
+        return new StampedTransform(new RigidTransform(), null, null, null);
+    }
+    
+    /**
+     * Sets this transformation to the identity, keeping time stamp and frame IDs.
+     */
+    public void setIdentity() {
+        transform.setIdentity();
+    }
+    
+    /**
+     * Sets the value of this transform to the given translation, rotation, time stamp and frame IDs,
+     * without allocating new objects.
+     */
+    public void set(Vector3d translation, Quat4d rotation, Time timeStamp, String frameID, String childFrameID) {
+        this.childFrameID = childFrameID; 
+        this.frameID = frameID;
+        this.timeStamp = timeStamp;
+        this.transform.set(rotation, translation);
+    }
+    
+    /**
+     * Sets the value of this transform to that of t1, without allocating new objects.
+     */
+    public void set(StampedTransform t1) {
+        this.childFrameID = t1.childFrameID; 
+        this.frameID = t1.frameID;
+        this.timeStamp = t1.timeStamp;
+        this.transform.set(t1.transform);
     }
     
     /**
@@ -117,21 +155,38 @@ public class StampedTransform {
      * Transforms the pose parameter with this transform and places the result into poseOut.
      */    
     public void transformPose(Matrix4d pose, Matrix4d poseOut) {
-        poseOut.mul(getMatrix4(), pose);
+        transform.transformPose(pose, poseOut);
     }
     
     /**
      * Transforms the point parameter with this transform and places the result into pointOut.
      */    
     public void transformPoint(Point3d point, Point3d pointOut) {
-        getMatrix4().transform(point, pointOut);
+        transform.transformPoint(point, pointOut);
     }
     
     /**
      * Transforms the vector parameter with this transform and places the result into vectorOut.
      */    
     public void transformVector(Vector3d vector, Vector3d vectorOut) {
-        getMatrix4().transform(vector, vectorOut);
+        transform.transformVector(vector, vectorOut);
+    }
+    
+    /**
+     * Transforms count packed points from points (starting at offset) with this transform and places the
+     * results into out (starting at outOffset), which may be the same array. The points have the given
+     * dimension: 3 for (x, y, z) triples, or 2 for (x, y) pairs in the plane z = 0 (the z component of
+     * the result is dropped).
+     */
+    public void transformPoints(double[] points, int offset, int count, int dimension, double[] out, int outOffset) {
+        transform.transformPoints(points, offset, count, dimension, out, outOffset);
+    }
+    
+    /**
+     * Same as transformPoints for double arrays, for packed float points.
+     */
+    public void transformPoints(float[] points, int offset, int count, int dimension, float[] out, int outOffset) {
+        transform.transformPoints(points, offset, count, dimension, out, outOffset);
     }
     
     /**
@@ -178,7 +233,7 @@ public class StampedTransform {
      */
     public Vector3d getTranslation() {
         Vector3d out = new Vector3d();
-        transform.get(out);
+        transform.getTranslation(out);
         return out;
     }
     
@@ -186,14 +241,14 @@ public class StampedTransform {
      * Calculates and returns the translational component of this transform in parameter out.
      */
     public void getTranslation(Vector3d out) {
-        transform.get(out);
+        transform.getTranslation(out);
     }    
     /**
      * Calculates and returns the rotational component of this transform.
      */
     public Quat4d getRotation() {
         Quat4d out = new Quat4d();
-        transform.get(out);
+        transform.getRotation(out);
         return out;
     }
     
@@ -201,16 +256,32 @@ public class StampedTransform {
      * Calculates and returns the rotational component of this transform in parameter out.
      */
     public void getRotation(Quat4d out) {
-        transform.get(out);
+        transform.getRotation(out);
     }
     
     /**
-     * Returns the 4x4 matrix representing this transform.
+     * Returns a new 4x4 matrix representing this transform; changing it does not change this transform.
      */
     public Matrix4d getMatrix4() {
-        return transform;
+        Matrix4d matrix = new Matrix4d();
+        transform.get(matrix);
+        return matrix;
+    }
+    
+    /**
+     * Stores the 4x4 matrix representing this transform in out, without allocating new objects.
+     */
+    public void getMatrix4(Matrix4d out) {
+        transform.get(out);
     }      
     
+    /**
+     * Returns the rigid transformation representing this transform.
+     */
+    public RigidTransform getTransform() {
+        return transform;
+    }
+    
     /**
      * Returns a string that contains the values of this transform.
      */    
@@ -42,6 +42,9 @@ import geometry_msgs.Vector3;
 import geometry_msgs.Quaternion;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  *
@@ -50,11 +53,110 @@ import java.util.ArrayList;
  *
  * Class for broadcasting tf messages.
  *
+ * By default every sendTransform() call is published as a separate message. In batching mode
+ * (see startBatching()), transforms are queued until flush() is called or the flush period expires,
+ * and then published together as a single tfMessage. A transform sent for a child frame that is already
+ * queued replaces the queued one, reusing its message object.
+ *
+ * Batching reduces the number of published messages, not the number of allocated message objects:
+ * every flush publishes a new tfMessage with a new TransformStamped per queued child frame. The
+ * publisher only queues a message and may serialize it after publish() returns, and it gives no notice
+ * once it has, so a published message is never refilled. Without batching, every sendTransform()
+ * allocates a tfMessage, its transform list and a TransformStamped.
+ *
+ * Publication policies (see setPolicy()) limit what is sent per child frame: a maximum rate, a change
+ * threshold below which a transform counts as unchanged, and a keepalive interval after which an
+ * unchanged transform is sent anyway. Policies are evaluated on every sendTransform() call; the
+ * broadcaster does not republish transforms by itself. Suppressed sends are counted.
+ *
  */
 public class TfBroadcaster {
 
   private Publisher<tfMessage> tfPublisher;
   private ConnectedNode node;
+
+  /** Guards the batching state below */
+  private final Object batchLock = new Object();
+  /** True if transforms are queued instead of published immediately */
+  private boolean batching;
+  /** Batch that is being filled, or null if no transforms are queued */
+  private Batch currentBatch;
+  /** Queued transforms of the current batch, by child frame */
+  private final HashMap<String, TransformStamped> queued = new HashMap<String, TransformStamped>();
+  /** Timer that flushes periodically, if a flush period was given */
+  private Timer flushTimer;
+
+  /** Guards the publication policies and frame states below */
+  private final Object policyLock = new Object();
+  /** Policy for child frames without a policy of their own, may be null */
+  private Policy defaultPolicy;
+  /** Publication state by child frame, for frames with a policy */
+  private final HashMap<String, FrameState> frameStates = new HashMap<String, FrameState>();
+  /** Total number of suppressed sends */
+  private long suppressedCount;
+
+  /**
+   * Publication policy for a child frame.
+   */
+  private static class Policy {
+    /** Minimum time between sends, in nanoseconds */
+    final long minInterval;
+    /** Translation threshold, in meters */
+    final double translationEpsilon;
+    /** Rotation threshold, in radians */
+    final double rotationEpsilon;
+    /** Time after which an unchanged transform is sent anyway, in nanoseconds; 0 for never */
+    final long keepalive;
+
+    Policy(double maxRate, double translationEpsilon, double rotationEpsilon, long keepaliveMillis) {
+      this.minInterval = (maxRate > 0) ? (long) (1e9 / maxRate) : 0;
+      this.translationEpsilon = translationEpsilon;
+      this.rotationEpsilon = rotationEpsilon;
+      this.keepalive = (keepaliveMillis > 0) ? keepaliveMillis * 1000000L : 0;
+    }
+  }
+
+  /**
+   * Last sent transform and suppression count of a child frame.
+   */
+  private static class FrameState {
+    /** Policy of this frame, or null if it uses the default policy */
+    Policy policy;
+    /** True once a transform was sent */
+    boolean sent;
+    /** Time of the last send (System.nanoTime) */
+    long sendTime;
+    /** Parent frame of the last sent transform */
+    String parentFrame;
+    /** Last sent translation and rotation */
+    double tx, ty, tz, qx, qy, qz, qw;
+    /** Number of suppressed sends */
+    long suppressedCount;
+  }
+
+  /**
+   * Message objects for one published tfMessage. A batch is not modified after it was published, so
+   * every flush starts a new one.
+   */
+  private static class Batch {
+    /** Message published for this batch */
+    final tfMessage msg;
+    /** Transforms of msg */
+    final ArrayList<TransformStamped> transforms = new ArrayList<TransformStamped>();
+
+    Batch(ConnectedNode node) {
+      msg = node.getTopicMessageFactory().newFromType(tfMessage._TYPE);
+      msg.setTransforms(transforms);
+    }
+
+    /** Returns a new transform message, appended to the transforms of this batch */
+    TransformStamped add(ConnectedNode node) {
+      TransformStamped tfMsg = node.getTopicMessageFactory().newFromType(TransformStamped._TYPE);
+      transforms.add(tfMsg);
+      return tfMsg;
+    }
+  }
+
   /**
    * Create a publisher from the given node.  Must be called before
    * any sendTransform() calls.
@@ -63,12 +165,18 @@ public class TfBroadcaster {
     stop();
     this.node = node;
     tfPublisher = node.newPublisher("/tf", "tf/tfMessage");
+    synchronized (batchLock) {
+      // message objects are created by the factory of the node
+      currentBatch = null;
+      queued.clear();
+    }
   }
 
   /**
-   * Shutdown the publisher if it exists.
+   * Shutdown the publisher if it exists. Flushes the queued transforms and ends batching mode.
    */
   public void stop() {
+    stopBatching();
     if( tfPublisher != null ) {
       tfPublisher.shutdown();
     }
@@ -80,20 +188,15 @@ public class TfBroadcaster {
    * Only call this after start() and before stop().
    */
   public void sendTransform(Vector3d transl, Quat4d rot, Time time, String parentFrame, String childFrame) {
-    // convert translation vector and quaternion to geometry messages
-	Vector3 tMsg  = node.getTopicMessageFactory().newFromType(Vector3._TYPE);
-		
-	Quaternion rMsg =node.getTopicMessageFactory().newFromType(Quaternion._TYPE);
-	
-	tMsg.setX(transl.x);
-	tMsg.setY(transl.y);
-	tMsg.setZ(transl.z);
-    
-	rMsg.setX(rot.x);
-	rMsg.setY(rot.y);
-	rMsg.setZ(rot.z);
-	rMsg.setW(rot.w);
-	
+    if (!passesPolicy(transl, rot, parentFrame, childFrame)) return;
+
+    synchronized (batchLock) {
+      if (batching) {
+        queueTransform(transl, rot, time, parentFrame, childFrame);
+        return;
+      }
+    }
+
     // create TransformStamped message (is a geometry msg, do NOT confuse with StampedTransform class)
     TransformStamped tfMsg = node.getTopicMessageFactory().newFromType( TransformStamped._TYPE );
     
@@ -102,8 +205,17 @@ public class TfBroadcaster {
     
     tfMsg.setChildFrameId(childFrame);
     
-    tfMsg.getTransform().setTranslation(tMsg); 
-    tfMsg.getTransform().setRotation(rMsg);
+    // fill in the translation and rotation messages that come with the transform
+    Vector3 tMsg = tfMsg.getTransform().getTranslation();
+    tMsg.setX(transl.x);
+    tMsg.setY(transl.y);
+    tMsg.setZ(transl.z);
+
+    Quaternion rMsg = tfMsg.getTransform().getRotation();
+    rMsg.setX(rot.x);
+    rMsg.setY(rot.y);
+    rMsg.setZ(rot.z);
+    rMsg.setW(rot.w);
 
     // create tfMessage and add TransformStamped message to it
     tfMessage msg = node.getTopicMessageFactory().newFromType(tfMessage._TYPE);
@@ -121,4 +233,213 @@ public class TfBroadcaster {
   public void sendTransform(StampedTransform t) {
     sendTransform(t.getTranslation(), t.getRotation(), t.timeStamp, t.frameID, t.childFrameID);
   }
+
+  /**
+   * Switches to batching mode: sendTransform() queues transforms until flush() is called. If
+   * flushPeriodMillis is positive, queued transforms are also flushed periodically with that period
+   * (e.g. the tick of the application).
+   */
+  public void startBatching(long flushPeriodMillis) {
+    synchronized (batchLock) {
+      batching = true;
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+      if (flushPeriodMillis > 0) {
+        flushTimer = new Timer("TfBroadcaster flush", true);
+        flushTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+              flush();
+            }
+          }, flushPeriodMillis, flushPeriodMillis);
+      }
+    }
+  }
+
+  /**
+   * Flushes the queued transforms and switches back to publishing every transform immediately.
+   */
+  public void stopBatching() {
+    synchronized (batchLock) {
+      flush();
+      batching = false;
+      if (flushTimer != null) {
+        flushTimer.cancel();
+        flushTimer = null;
+      }
+    }
+  }
+
+  /**
+   * Returns true if in batching mode.
+   */
+  public boolean isBatching() {
+    synchronized (batchLock) {
+      return batching;
+    }
+  }
+
+  /**
+   * Publishes all queued transforms as a single tf message. Does nothing if no transforms are queued.
+   */
+  public void flush() {
+    synchronized (batchLock) {
+      if (currentBatch == null || currentBatch.transforms.isEmpty()) return;
+      if (tfPublisher != null) {
+        tfPublisher.publish(currentBatch.msg);
+      }
+      // the publisher may still be serializing the published batch, so the next one starts afresh
+      currentBatch = null;
+      queued.clear();
+    }
+  }
+
+  /**
+   * Queues the given transform, replacing a queued transform with the same child frame. Caller must
+   * hold batchLock.
+   */
+  private void queueTransform(Vector3d transl, Quat4d rot, Time time, String parentFrame, String childFrame) {
+    if (currentBatch == null) currentBatch = new Batch(node);
+    TransformStamped tfMsg = queued.get(childFrame);
+    if (tfMsg == null) {
+      tfMsg = currentBatch.add(node);
+      queued.put(childFrame, tfMsg);
+    }
+
+    tfMsg.getHeader().setFrameId(parentFrame);
+    tfMsg.getHeader().setStamp(time);
+    tfMsg.setChildFrameId(childFrame);
+
+    Vector3 tMsg = tfMsg.getTransform().getTranslation();
+    tMsg.setX(transl.x);
+    tMsg.setY(transl.y);
+    tMsg.setZ(transl.z);
+
+    Quaternion rMsg = tfMsg.getTransform().getRotation();
+    rMsg.setX(rot.x);
+    rMsg.setY(rot.y);
+    rMsg.setZ(rot.z);
+    rMsg.setW(rot.w);
+  }
+
+  /**
+   * Sets the publication policy of the given child frame. Sends are suppressed if they come less than
+   * 1/maxRate seconds after the previous send (no limit if maxRate <= 0), or if the transform moved
+   * by at most translationEpsilon (meters) and rotationEpsilon (radians) since the previous send and
+   * that send is less than keepaliveMillis ago (a negative epsilon disables change gating; a
+   * keepaliveMillis <= 0 suppresses unchanged transforms indefinitely).
+   */
+  public void setPolicy(String childFrame, double maxRate, double translationEpsilon, double rotationEpsilon,
+                        long keepaliveMillis) {
+    synchronized (policyLock) {
+      FrameState state = frameStates.get(childFrame);
+      if (state == null) {
+        state = new FrameState();
+        frameStates.put(childFrame, state);
+      }
+      state.policy = new Policy(maxRate, translationEpsilon, rotationEpsilon, keepaliveMillis);
+    }
+  }
+
+  /**
+   * Sets the publication policy of all child frames without a policy of their own; see setPolicy().
+   */
+  public void setDefaultPolicy(double maxRate, double translationEpsilon, double rotationEpsilon,
+                               long keepaliveMillis) {
+    synchronized (policyLock) {
+      defaultPolicy = new Policy(maxRate, translationEpsilon, rotationEpsilon, keepaliveMillis);
+    }
+  }
+
+  /**
+   * Removes the publication policy of the given child frame, which then uses the default policy (if any).
+   */
+  public void clearPolicy(String childFrame) {
+    synchronized (policyLock) {
+      FrameState state = frameStates.get(childFrame);
+      if (state != null) state.policy = null;
+    }
+  }
+
+  /**
+   * Removes the default publication policy; frames without a policy of their own are always sent.
+   */
+  public void clearDefaultPolicy() {
+    synchronized (policyLock) {
+      defaultPolicy = null;
+    }
+  }
+
+  /**
+   * Returns the total number of sends suppressed by publication policies.
+   */
+  public long getSuppressedCount() {
+    synchronized (policyLock) {
+      return suppressedCount;
+    }
+  }
+
+  /**
+   * Returns the number of sends of the given child frame suppressed by publication policies.
+   */
+  public long getSuppressedCount(String childFrame) {
+    synchronized (policyLock) {
+      FrameState state = frameStates.get(childFrame);
+      return (state == null) ? 0 : state.suppressedCount;
+    }
+  }
+
+  /**
+   * Returns true if the given transform should be sent according to the policy of its child frame,
+   * and records it as sent if so. Counts the send as suppressed otherwise.
+   */
+  private boolean passesPolicy(Vector3d transl, Quat4d rot, String parentFrame, String childFrame) {
+    synchronized (policyLock) {
+      FrameState state = frameStates.get(childFrame);
+      Policy policy = (state != null && state.policy != null) ? state.policy : defaultPolicy;
+      if (policy == null) return true;
+      if (state == null) {
+        state = new FrameState();
+        frameStates.put(childFrame, state);
+      }
+
+      long now = System.nanoTime();
+      if (state.sent) {
+        long elapsed = now - state.sendTime;
+        boolean send;
+        if (elapsed < policy.minInterval) {
+          send = false;
+        } else if (policy.keepalive > 0 && elapsed >= policy.keepalive) {
+          send = true;
+        } else {
+          send = !parentFrame.equals(state.parentFrame) || hasChanged(state, policy, transl, rot);
+        }
+        if (!send) {
+          state.suppressedCount++;
+          suppressedCount++;
+          return false;
+        }
+      }
+
+      state.sent = true;
+      state.sendTime = now;
+      state.parentFrame = parentFrame;
+      state.tx = transl.x; state.ty = transl.y; state.tz = transl.z;
+      state.qx = rot.x; state.qy = rot.y; state.qz = rot.z; state.qw = rot.w;
+      return true;
+    }
+  }
+
+  /**
+   * Returns true if the given transform differs from the last sent one by more than the thresholds.
+   */
+  private static boolean hasChanged(FrameState state, Policy policy, Vector3d transl, Quat4d rot) {
+    if (policy.translationEpsilon < 0 || policy.rotationEpsilon < 0) return true;
+    double dx = transl.x - state.tx, dy = transl.y - state.ty, dz = transl.z - state.tz;
+    if (dx*dx + dy*dy + dz*dz > policy.translationEpsilon * policy.translationEpsilon) return true;
+    double dot = Math.abs(rot.x*state.qx + rot.y*state.qy + rot.z*state.qz + rot.w*state.qw);
+    return 2.0 * Math.acos(Math.min(1.0, dot)) > policy.rotationEpsilon;
+  }
 }
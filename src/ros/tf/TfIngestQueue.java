@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import geometry_msgs.TransformStamped;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of transform messages between the subscriber threads and the single tf ingest
+ * worker of a TfListener (see {@link TfListener#setIngestQueue(int)}). Any number of threads may offer;
+ * only one thread may poll. When the queue is full, offered transforms are dropped and counted.
+ */
+final class TfIngestQueue {
+    
+    private final AtomicReferenceArray<TransformStamped> slots;
+    private final int mask;
+    /** Index of the next slot to read; only advanced by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /** Index of the next slot to claim by a producer */
+    private final AtomicLong tail = new AtomicLong();
+    /** Number of transforms dropped because the queue was full */
+    private final AtomicLong dropped = new AtomicLong();
+    /** Highest depth seen by a producer */
+    private volatile int maxDepth;
+    
+    /**
+     * Creates a queue holding at least the given number of transforms (rounded up to a power of two).
+     */
+    TfIngestQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        this.slots = new AtomicReferenceArray<TransformStamped>(size);
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Appends the given transform, or drops it if the queue is full. Returns false if it was dropped.
+     */
+    boolean offer(TransformStamped transform) {
+        long index;
+        do {
+            index = tail.get();
+            if (index - head.get() >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(index, index + 1));
+        // the slot is free: the consumer cleared it before moving head past it
+        slots.lazySet((int) index & mask, transform);
+        
+        int depth = (int) (index + 1 - head.get());
+        if (depth > maxDepth) maxDepth = depth;
+        return true;
+    }
+    
+    /**
+     * Removes up to max transforms from the head of the queue into out (from index 0), and returns their
+     * number. Stops early at a slot that was claimed but not filled yet. Only called by the consumer.
+     */
+    int drain(TransformStamped[] out, int max) {
+        long index = head.get();
+        int count = 0;
+        while (count < max) {
+            int slot = (int) index & mask;
+            TransformStamped transform = slots.get(slot);
+            if (transform == null) break;
+            slots.lazySet(slot, null);
+            out[count++] = transform;
+            index++;
+        }
+        if (count > 0) {
+            head.lazySet(index);
+        }
+        return count;
+    }
+    
+    /**
+     * Returns true if no transform is waiting (claimed slots that are not filled yet count as waiting).
+     */
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+    
+    /**
+     * Returns the number of transforms waiting in the queue.
+     */
+    int getDepth() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+    
+    /**
+     * Returns the capacity of the queue.
+     */
+    int getCapacity() {
+        return slots.length();
+    }
+    
+    /**
+     * Returns the highest number of transforms that were waiting at the same time.
+     */
+    int getMaxDepth() {
+        return maxDepth;
+    }
+    
+    /**
+     * Returns the number of transforms dropped because the queue was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+    
+}
@@ -45,9 +45,24 @@ import javax.vecmath.Vector3d;
 import javax.vecmath.Point3d;
 import javax.vecmath.Matrix4d;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.PriorityQueue;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
 
 /**
  * A client that listens to the /tf topic, stores transforms in a buffer and allows transformation
@@ -55,13 +70,29 @@ import java.util.LinkedList;
  *
  * The listener runs in a seperate thread. All tf messages published on the /tf topic are stored in
  * a buffer, first sorted by child frame, then by parent frame, then by time stamp. This allows fast
- * lookup of transformations. Tf's that are MAX_STORAGE_TIME older than the newest tf in the corresponding
- * time cache are ignored.
+ * lookup of transformations. Tf's that are older than the newest tf in the corresponding time cache by more
+ * than the storage time of the edge (MAX_STORAGE_TIME by default, see setStorageTime) are ignored. An optional
+ * memory budget (see setMemoryBudget) bounds the memory used by all time caches together.
  *
  * To calculate a transformation from some source frame S to a target frame T at time t, TfListener uses a graph
  * search to find the best path from S to T. At the moment, 'best' means that the largest difference between
  * the time stamps of the transformations on the path and time t is minimized. If the tf graph is a tree, as is
  * the case with original C++-implementation of tf, the graph will simply return the only path available (if any).
+ * Since the topology of the tf graph hardly ever changes, paths found in the tree part of the graph are cached
+ * per (source, target) pair until a new edge is added; lookups in multi-parent parts of the graph always search.
+ *
+ * Frames can be resolved once into a {@link Frame} reference (see getFrame and registerFrame), which acts
+ * as a handle: the lookup and transform methods that take frames instead of frame IDs do no string work at
+ * all. Every frame also has a compact integer handle, see {@link Frame#getHandle()} and getFrame(int).
+ *
+ * Concurrency: transforms are inserted by a single writer (the /tf subscriber thread; concurrent calls to
+ * setTransform are serialized on an internal lock), while lookups may be done from any number of threads
+ * at the same time. Lookups never take that lock: the frame registry is a concurrent map, the parent map of
+ * each frame is copy-on-write and each time cache uses versioned (seqlock) reads. The writer is thus never
+ * blocked by readers and readers never block the writer.
+ *
+ * The listener keeps metrics on inserts (per edge) and lookups, including the reason of failed lookups;
+ * see getMetrics().
  *
  * @author Sjoerd van den Dries
  * @version March 4, 2011
@@ -70,11 +101,97 @@ public class TfListener {
 
   /** Maximum buffer storage time */
   public static final long MAX_STORAGE_TIME = (new Duration(10, 0)).totalNsecs();
+  /** Number of points above which the bulk transform methods split the work over multiple threads */
+  public static final int PARALLEL_THRESHOLD = 32768;
+
+  /** Worker threads for parallel bulk transforms; created on first use */
+  private static ExecutorService bulkExecutor;
 
   private Subscriber<tfMessage> tfSubscriber;
   private ConnectedNode node;
   /** Map that maps frame IDs (names) to frames */
-  protected HashMap<String, Frame> frames;
+  protected ConcurrentHashMap<String, Frame> frames;
+  /** Frames by handle; replaced by a larger copy when full */
+  protected volatile Frame[] frameTable = new Frame[16];
+  /** Number of registered frames, which is also the next free handle */
+  protected int frameCount = 0;
+  /** Serializes the creation of frames */
+  private final Object frameLock = new Object();
+  /** Serializes writers (setTransform); never taken by lookups */
+  private final Object writeLock = new Object();
+  /**
+   * Frames by the frame IDs as they appear in messages (before resolving), so that ingestion need not
+   * resolve names for every transform. Guarded by writeLock.
+   */
+  private final HashMap<String, Frame> ingestFrames = new HashMap<String, Frame>();
+  /**
+   * Union-find forest over frame handles, labelling the connected components of the tf graph: entry h
+   * holds the handle of the parent of h in the forest plus one, or 0 if h is a root (also for handles
+   * beyond the array). Only modified by the writer, under writeLock; readers follow it without locking.
+   */
+  private volatile int[] components = new int[16];
+  /** Number of frames in the component of each root handle, minus one. Guarded by writeLock. */
+  private int[] componentSizes = new int[16];
+  /** Topology version the components are valid for */
+  private volatile int componentVersion = 0;
+  /** Incremented by the frames whenever a new edge is added to the tf graph */
+  protected final AtomicInteger topologyVersion = new AtomicInteger();
+  /** Incremented by the time caches whenever an edge becomes static or dynamic, or a static value changes */
+  protected final AtomicInteger staticVersion = new AtomicInteger();
+  /** Cached paths, by source frame and then by target frame */
+  protected ConcurrentHashMap<Frame, ConcurrentHashMap<Frame, CachedPath>> pathCache;
+  /** Guards the path watchers (pending waitForTransform requests and transform subscriptions) */
+  private final Object watcherLock = new Object();
+  /** Path watchers, by the child frames of the edges on their path */
+  private final HashMap<Frame, ArrayList<PathWatcher>> watchersByFrame = new HashMap<Frame, ArrayList<PathWatcher>>();
+  /** Path watchers between frames that are not connected yet */
+  private final ArrayList<PathWatcher> unconnectedWatchers = new ArrayList<PathWatcher>();
+  /** Number of path watchers */
+  private volatile int watcherCount = 0;
+  /** Topology version for which the paths of the watchers were indexed */
+  private int watcherVersion = -1;
+  /** Makes adding an edge and logging it in newEdgeFrames atomic for notifyWatchers */
+  private final Object newEdgeLock = new Object();
+  /** Child frames of the edges added while there were watchers, since the last re-index. Guarded by newEdgeLock. */
+  private ArrayList<Frame> newEdgeFrames = new ArrayList<Frame>();
+  /** Timer that times out waitForTransform requests; created on first use */
+  private Timer timeoutTimer;
+  /** Storage time of edges that match no storage rule, in nanoseconds */
+  private long defaultStorageTime = MAX_STORAGE_TIME;
+  /** Storage times per frame pattern; later rules take precedence. Guarded by writeLock. */
+  private final ArrayList<StorageRule> storageRules = new ArrayList<StorageRule>();
+  /** Memory budget of all time caches together, in bytes (0 = unlimited). Written under writeLock, read without it. */
+  private volatile long memoryBudget = 0;
+  /** Approximate memory used by all time caches, in bytes. Only updated by the writer. */
+  private volatile long memoryUsage = 0;
+  /**
+   * Memory usage at which the memory budget was last found unreachable, because all dynamic edges were
+   * at their smallest capacity; -1 if it was not. Guarded by writeLock.
+   */
+  private long unreachableMemoryUsage = -1;
+  /** Topology version at which the memory budget was last found unreachable. Guarded by writeLock. */
+  private int unreachableTopologyVersion;
+  /** True once an unreachable memory budget was logged. Guarded by writeLock. */
+  private boolean unreachableBudgetLogged;
+  /** Worker that ingests the transforms received by the subscriber, or null to ingest them inline */
+  private volatile IngestWorker ingestWorker;
+  /** Serializes starting and stopping the ingest worker */
+  private final Object ingestLock = new Object();
+  /** Recorder of all ingested transforms, may be null */
+  private volatile TfRecorder recorder;
+  /** Logger of warnings about the memory budget */
+  private static final Logger logger = Logger.getLogger(TfListener.class.getName());
+  /** Insert and lookup metrics */
+  private final TfMetrics metrics = new TfMetrics();
+  /** If false, no metrics are recorded */
+  private volatile boolean metricsEnabled = true;
+  /** Per-thread scratch objects, so that lookups need not allocate */
+  private final ThreadLocal<LookupScratch> lookupScratch = new ThreadLocal<LookupScratch>() {
+    @Override
+    protected LookupScratch initialValue() {
+      return new LookupScratch(metrics.newLookupStats());
+    }
+  };
   /** TF name prefix, currently not used (TODO) */
   protected String tfPrefix = "";
 
@@ -103,7 +220,8 @@ public class TfListener {
    * Class constructor.  Initializes internal storage.
    */
   public TfListener() {
-    frames = new HashMap<String, Frame>();
+    frames = new ConcurrentHashMap<String, Frame>();
+    pathCache = new ConcurrentHashMap<Frame, ConcurrentHashMap<Frame, CachedPath>>();
   }
 
   /**
@@ -120,8 +238,11 @@ public class TfListener {
           @Override
           public void onNewMessage(final tfMessage msg) {
             if (msg != null) {
-              for(TransformStamped tf : msg.getTransforms()) {
-                setTransform(tf);
+              IngestWorker worker = ingestWorker;
+              if (worker != null) {
+                enqueueTransforms(worker, msg.getTransforms());
+              } else {
+                setTransforms(msg.getTransforms(), false);
               }
             }
           }
@@ -148,48 +269,344 @@ public class TfListener {
    * ********************************************************************** */
 
   /**
-   * Converts transform (a geometry msg) to a TransformStorage object and adds it to the buffer.
+   * Adds transform (a geometry msg) to the buffer.
    */
   protected boolean setTransform(TransformStamped transform) {
-    // resolve the frame ID's
-    String childFrameID = assertResolved(tfPrefix, transform.getChildFrameId());
-    String frameID = assertResolved(tfPrefix, transform.getHeader().getFrameId());
+    return setTransform(transform, false);
+  }
+
+  /**
+   * Adds the given transform to the buffer and marks its edge as static: the transform is then used for
+   * all times, is never evicted, and is precomposed with neighbouring static edges in cached paths.
+   * Use this for fixed mounts; a later call replaces the transform.
+   */
+  public boolean setStaticTransform(TransformStamped transform) {
+    return setTransform(transform, true);
+  }
+
+  /**
+   * Marks the existing edge from the given parent frame to the given child frame as static or dynamic.
+   * Returns false if there is no such edge. Edges whose value does not change are also detected as
+   * static automatically if enabled on their time cache (see {@link TimeCache#setStaticDetectionSamples(int)}).
+   */
+  public boolean setStatic(String parentFrameID, String childFrameID, boolean isStatic) {
+    Frame parentFrame = getFrame(parentFrameID);
+    Frame childFrame = getFrame(childFrameID);
+    if (parentFrame == null || childFrame == null) return false;
+    synchronized (writeLock) {
+      TimeCache cache = childFrame.getTimeCache(parentFrame);
+      if (cache == null) return false;
+      TfRecorder recorder = this.recorder;
+      if (recorder != null) {
+        recorder.recordStatic(parentFrame, childFrame, isStatic);
+      }
+      long memoryBefore = cache.getMemoryUsage();
+      cache.setStatic(isStatic);
+      memoryUsage += cache.getMemoryUsage() - memoryBefore;
+    }
+    return true;
+  }
+
+  /**
+   * Adds the given transform to the buffer, first marking its edge as static if isStatic is set.
+   */
+  protected boolean setTransform(TransformStamped transform, boolean isStatic) {
+    Frame frame;
+    boolean inserted;
+    synchronized (writeLock) {
+      frame = ingestFrame(transform.getChildFrameId());
+      inserted = ingestTransform(transform, frame, isStatic);
+    }
+    if (inserted && watcherCount > 0) {
+      notifyWatchers(frame, transform.getHeader().getStamp().totalNsecs());
+    }
+    return inserted;
+  }
+
+  /**
+   * Adds all given transforms (e.g. those of one tf message) to the buffer, marking their edges as static
+   * if isStatic is set. The translation, rotation and stamp of each transform are copied straight from the
+   * message into the time cache of its edge, under a single acquisition of the write lock; the messages are
+   * not modified. Returns the number of transforms that were inserted.
+   */
+  public int setTransforms(List<TransformStamped> transforms, boolean isStatic) {
+    int count = transforms.size();
+    // only remember the inserted edges if there is someone to notify
+    Frame[] insertedFrames = (watcherCount > 0) ? new Frame[count] : null;
+    long[] insertedStamps = (insertedFrames != null) ? new long[count] : null;
+    int inserted = 0;
+    synchronized (writeLock) {
+      for(int i = 0; i < count; i++) {
+        TransformStamped transform = transforms.get(i);
+        Frame frame = ingestFrame(transform.getChildFrameId());
+        if (ingestTransform(transform, frame, isStatic)) {
+          if (insertedFrames != null) {
+            insertedFrames[inserted] = frame;
+            insertedStamps[inserted] = transform.getHeader().getStamp().totalNsecs();
+          }
+          inserted++;
+        }
+      }
+    }
+
+    // notify waitForTransform requests and subscriptions that depend on the edges of the frames
+    if (insertedFrames != null) {
+      for(int i = 0; i < inserted; i++) {
+        notifyWatchers(insertedFrames[i], insertedStamps[i]);
+      }
+    }
+    return inserted;
+  }
 
-    boolean errorExists = false;
-    if (childFrameID.equals(frameID)) {
-//      ros.logError("TF_SELF_TRANSFORM: Ignoring transform with frame_id and child_frame_id  \"" + childFrameID + "\" because they are the same");
-      errorExists = true;
+  /**
+   * Inserts the given transform message in the time cache of its edge, without notifying watchers; frame is
+   * the ingested child frame of the message. Caller must hold writeLock.
+   */
+  private boolean ingestTransform(TransformStamped transform, Frame frame, boolean isStatic) {
+    Frame parentFrame = (frame != null) ? ingestFrame(transform.getHeader().getFrameId()) : null;
+    if (parentFrame == null) {
+//      ros.logError("TF_NO_FRAME_ID: Ignoring transform because frame_id or child_frame_id not set");
+      return false;
     }
+    if (frame == parentFrame) {
+//      ros.logError("TF_SELF_TRANSFORM: Ignoring transform with frame_id and child_frame_id  \"" + frame.getFrameID() + "\" because they are the same");
+      return false;
+    }
+
+    Vector3 t = transform.getTransform().getTranslation();
+    Quaternion r = transform.getTransform().getRotation();
+    return insertTransformLocked(parentFrame, frame, transform.getHeader().getStamp().totalNsecs(),
+                                 t.getX(), t.getY(), t.getZ(), r.getX(), r.getY(), r.getZ(), r.getW(),
+                                 isStatic);
+  }
 
-    if (childFrameID.equals("/")) { //empty frame id will be mapped to "/"
-//      ros.logError("TF_NO_CHILD_FRAME_ID: Ignoring transform because child_frame_id not set ");
-      errorExists = true;
+  /**
+   * Returns the frame with the given frame ID as it appears in a message, registering it if it does not
+   * exist, or null if the ID is empty. Caller must hold writeLock.
+   */
+  private Frame ingestFrame(String frameID) {
+    Frame frame = ingestFrames.get(frameID);
+    if (frame == null) {
+      String resolvedID = assertResolved(tfPrefix, frameID);
+      if (resolvedID.equals("/")) return null; // empty frame id is mapped to "/"
+      frame = lookupOrInsertFrame(resolvedID);
+      ingestFrames.put(frameID, frame);
     }
+    return frame;
+  }
 
-    if (frameID.equals("/")) { //empty parent id will be mapped to "/"
-//      ros.logError("TF_NO_FRAME_ID: Ignoring transform with child_frame_id \"" + childFrameID + "\" because frame_id not set");
-      errorExists = true;
+  /**
+   * Adds the transform from parentFrame to childFrame with the given time stamp (in nanoseconds) to the
+   * buffer, without going through a message; the frames must have been registered with this listener
+   * (see registerFrame). If isStatic is set, the edge is marked as static first. Returns false if the frames
+   * are the same or if the data is older than the buffer of the edge; throws IllegalArgumentException if
+   * a frame was not registered with this listener.
+   */
+  public boolean setTransform(Frame parentFrame, Frame childFrame, long stamp, RigidTransform transform,
+                              boolean isStatic) {
+    if (parentFrame == childFrame) return false;
+    if (!isOwnFrame(parentFrame) || !isOwnFrame(childFrame)) {
+      throw new IllegalArgumentException("Frames " + parentFrame.getFrameID() + " and " + childFrame.getFrameID()
+                                         + " must be registered with this listener");
+    }
+    boolean inserted;
+    synchronized (writeLock) {
+      inserted = insertTransformLocked(parentFrame, childFrame, stamp,
+                                       transform.tx, transform.ty, transform.tz,
+                                       transform.qx, transform.qy, transform.qz, transform.qw, isStatic);
     }
 
-    if (errorExists) return false;
+    // notify waitForTransform requests and subscriptions that depend on the edges of this frame
+    if (inserted && watcherCount > 0) {
+      notifyWatchers(childFrame, stamp);
+    }
+    return inserted;
+  }
 
-    // lookup or insert child frame
-    Frame frame = lookupOrInsertFrame(childFrameID);
+  /**
+   * Inserts the transform given by its components in the time cache of its edge, without notifying
+   * watchers. Caller must hold writeLock.
+   */
+  private boolean insertTransformLocked(Frame parentFrame, Frame frame, long stamp,
+                                        double tx, double ty, double tz,
+                                        double qx, double qy, double qz, double qw, boolean isStatic) {
+    TimeCache cache = lookupOrInsertTimeCache(frame, parentFrame);
+    long memoryBefore = cache.getMemoryUsage();
+    if (isStatic) {
+      cache.setStatic(true);
+    }
+    boolean inserted = insertSample(cache, stamp, tx, ty, tz, qx, qy, qz, qw, isStatic);
+    memoryUsage += cache.getMemoryUsage() - memoryBefore;
+    if (memoryBudget > 0 && memoryUsage > memoryBudget) {
+      enforceMemoryBudget();
+    }
+    return inserted;
+  }
 
-    // convert tf message to JTransform datastructure
-    transform.setChildFrameId(childFrameID);
-    transform.getHeader().setFrameId(frameID);
-    TransformStorage tf = transformStampedMsgToTF(transform);
+  /**
+   * Records the given transform and inserts it in the given time cache, without accounting for its memory.
+   * Caller must hold writeLock.
+   */
+  private boolean insertSample(TimeCache cache, long stamp, double tx, double ty, double tz,
+                               double qx, double qy, double qz, double qw, boolean isStatic) {
+    TfRecorder recorder = this.recorder;
+    if (recorder != null) {
+      recorder.record(cache.parentFrame, cache.childFrame, stamp, tx, ty, tz, qx, qy, qz, qw, isStatic);
+    }
 
     // try to insert tf in corresponding time cache. If result is FALSE, the tf contains old data.
-    if (!frame.insertData(tf)) {
-//      ros.logWarn("TF_OLD_DATA ignoring data from the past for frame \"" + childFrameID + "\" at time " + ((double)tf.getTimeStamp() / 1E9));
+    boolean inserted = cache.insertData(stamp, tx, ty, tz, qx, qy, qz, qw);
+    if (metricsEnabled) {
+      cache.metrics.recordInsert(stamp, System.currentTimeMillis() * 1000000L, !inserted);
+    }
+    if (!inserted) {
+//      ros.logWarn("TF_OLD_DATA ignoring data from the past for frame \"" + cache.childFrame.getFrameID() + "\" at time " + ((double)stamp / 1E9));
       return false;
     }
-
     return true;
   }
 
+  /**
+   * Returns the time cache of the edge from parentFrame to frame, creating it with the storage time
+   * of the matching storage rule if it does not exist yet. Caller must hold writeLock.
+   */
+  private TimeCache lookupOrInsertTimeCache(Frame frame, Frame parentFrame) {
+    TimeCache cache = frame.getTimeCache(parentFrame);
+    if (cache == null) {
+      int version = topologyVersion.get();
+      synchronized (newEdgeLock) {
+        cache = frame.lookupOrInsertTimeCache(parentFrame);
+        if (watcherCount > 0) newEdgeFrames.add(frame);
+      }
+      cache.setMaxStorageTime(getStorageTime(parentFrame.getFrameID(), frame.getFrameID()));
+      memoryUsage += cache.getMemoryUsage();
+      // update the components incrementally if they were up to date; otherwise rebuild them
+      if (componentVersion == version) {
+        unionComponents(frame.getHandle(), parentFrame.getHandle());
+        componentVersion = topologyVersion.get();
+      } else {
+        rebuildComponents();
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns true if the given frames are connected by edges of the tf graph (in any direction).
+   * Takes constant time (amortized), so it can be used to reject lookups between separate trees
+   * without searching the graph. Readers never wait for the writer: if the components missed a change
+   * of the topology, they are computed for this call only, and the writer rebuilds them on its next new edge.
+   * Returns false if either frame was not created by this listener (see registerFrame).
+   */
+  public boolean isConnected(Frame frame1, Frame frame2) {
+    if (frame1 == frame2) return true;
+    if (!isOwnFrame(frame1) || !isOwnFrame(frame2)) return false;
+    int version = componentVersion;
+    int[] components = this.components;
+    if (version != topologyVersion.get()) {
+      components = buildComponents(null);
+    }
+    return findComponent(components, frame1.getHandle()) == findComponent(components, frame2.getHandle());
+  }
+
+  /**
+   * Returns true if the given frame was created by this listener, so that its handle indexes the components.
+   */
+  private boolean isOwnFrame(Frame frame) {
+    int handle = frame.getHandle();
+    Frame[] table = frameTable;
+    return handle >= 0 && handle < table.length && table[handle] == frame;
+  }
+
+  /**
+   * Returns true if a lookup between the given frames may succeed: false only if both frames belong to this
+   * listener and are in separate components. Frames of another origin are left to the graph search.
+   */
+  private boolean mayBeConnected(Frame frame1, Frame frame2) {
+    if (!isOwnFrame(frame1) || !isOwnFrame(frame2)) return true;
+    return isConnected(frame1, frame2);
+  }
+
+  /**
+   * Returns the root handle of the component of the given (non-negative) handle.
+   */
+  private static int findComponent(int[] components, int handle) {
+    while (handle < components.length && components[handle] != 0) {
+      handle = components[handle] - 1;
+    }
+    return handle;
+  }
+
+  /**
+   * Recomputes the components from all edges of the graph, for when they may have missed a change of
+   * the topology (e.g. edges added directly through Frame.insertData). Caller must hold writeLock.
+   */
+  private void rebuildComponents() {
+    int version = topologyVersion.get();
+    // build into new arrays, so readers keep using the old components until they are published
+    int[] newSizes = new int[frameTable.length];
+    int[] newComponents = buildComponents(newSizes);
+    componentSizes = newSizes;
+    components = newComponents;
+    componentVersion = version;
+  }
+
+  /**
+   * Returns a new union-find forest of the components of all edges of the graph, storing the component
+   * sizes in sizes (which is allocated if null, and must be at least as long as the frame table).
+   */
+  private int[] buildComponents(int[] sizes) {
+    Frame[] table = frameTable;
+    if (sizes == null || sizes.length < table.length) sizes = new int[table.length];
+    int[] newComponents = new int[sizes.length];
+    for(Frame frame : table) {
+      if (frame == null) continue;
+      for(Frame parentFrame : frame.getParentFrames()) {
+        // a parent created after the table was read belongs to an edge that is being added concurrently;
+        // a parent of another origin (handle -1) is not part of the components
+        if (parentFrame.getHandle() < 0 || parentFrame.getHandle() >= sizes.length) continue;
+        linkComponents(newComponents, sizes, frame.getHandle(), parentFrame.getHandle());
+      }
+    }
+    return newComponents;
+  }
+
+  /**
+   * Merges the components of the given frame handles, after an edge between them was added. Edges are
+   * never removed from the graph (eviction only drops data within an edge), so components only ever
+   * merge. Caller must hold writeLock.
+   */
+  private void unionComponents(int handle1, int handle2) {
+    int[] components = this.components;
+    int needed = Math.max(handle1, handle2) + 1;
+    if (needed > components.length) {
+      int length = components.length;
+      while (length < needed) length *= 2;
+      int[] newComponents = new int[length];
+      System.arraycopy(components, 0, newComponents, 0, components.length);
+      int[] newSizes = new int[length];
+      System.arraycopy(componentSizes, 0, newSizes, 0, componentSizes.length);
+      components = newComponents;
+      componentSizes = newSizes;
+      this.components = components;
+    }
+    linkComponents(components, componentSizes, handle1, handle2);
+    this.components = components; // publish the change to readers
+  }
+
+  /** Merges the components of the given frame handles in the given union-find forest. */
+  private static void linkComponents(int[] components, int[] componentSizes, int handle1, int handle2) {
+    int root1 = findComponent(components, handle1);
+    int root2 = findComponent(components, handle2);
+    if (root1 == root2) return;
+    // union by size; path compression is skipped, since the trees stay shallow
+    if (componentSizes[root1] < componentSizes[root2]) {
+      int swap = root1; root1 = root2; root2 = swap;
+    }
+    componentSizes[root1] += componentSizes[root2] + 1;
+    components[root2] = root1 + 1;
+  }
+
   /**
    * Looks up and returns the frame belonging to the given frame ID.
    * If the frame does not exist yet, it is first added to the map.
@@ -197,57 +614,269 @@ public class TfListener {
   protected Frame lookupOrInsertFrame(String frameID) {
     Frame frame = frames.get(frameID);
     if (frame == null) {
-      frame = new Frame(frameID, MAX_STORAGE_TIME);
-      frames.put(frameID, frame);
+      synchronized (frameLock) {
+        frame = frames.get(frameID);
+        if (frame == null) {
+          frame = new Frame(frameID, frameCount, MAX_STORAGE_TIME, topologyVersion, staticVersion);
+          Frame[] table = frameTable;
+          if (frameCount == table.length) {
+            Frame[] newTable = new Frame[table.length * 2];
+            System.arraycopy(table, 0, newTable, 0, table.length);
+            table = newTable;
+          }
+          table[frameCount++] = frame;
+          frameTable = table;
+          frames.put(frameID, frame);
+        }
+      }
     }
     return frame;
   }
 
+  /**
+   * Returns the frame with the given (resolved or unresolved) ID, or null if no transforms
+   * have been received for it yet. The returned frame can be used as a handle in the lookup methods.
+   */
+  public Frame getFrame(String frameID) {
+    return frames.get(assertResolved(tfPrefix, frameID));
+  }
+
+  /**
+   * Returns the frame with the given (resolved or unresolved) ID, registering it if it does not exist
+   * yet. This allows resolving frames once, before any transforms for them have been received.
+   */
+  public Frame registerFrame(String frameID) {
+    return lookupOrInsertFrame(assertResolved(tfPrefix, frameID));
+  }
+
+  /**
+   * Returns the frame with the given integer handle, or null if there is no such frame.
+   */
+  public Frame getFrame(int handle) {
+    Frame[] table = frameTable;
+    return (handle >= 0 && handle < table.length) ? table[handle] : null;
+  }
+
   /* **********************************************************************
    * *                         TRANSFORM METHODS                          *
    * ********************************************************************** */
 
   /**
    * Transforms a stamped point to the given target frame, and returns the result in stampedOut.
+   * Leaves stampedOut untouched if no transformation could be found; see tryTransformPoint.
    */
   public void transformPoint(String targetFrameID, Stamped<Point3d> stampedIn, Stamped<Point3d> stampedOut) {
-    StampedTransform transform = lookupTransform(targetFrameID, stampedIn.frameID, stampedIn.timeStamp);
+    tryTransformPoint(targetFrameID, stampedIn, stampedOut);
+  }
+
+  /**
+   * Same as transformPoint(String, Stamped, Stamped), but returns false (and leaves stampedOut
+   * untouched) if no transformation could be found.
+   */
+  public boolean tryTransformPoint(String targetFrameID, Stamped<Point3d> stampedIn, Stamped<Point3d> stampedOut) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, stampedIn.frameID, stampedIn.timeStamp, transform)) return false;
     transform.transformPoint(stampedIn.getData(), stampedOut.getData());
     stampedOut.frameID = targetFrameID;
     stampedOut.timeStamp = stampedIn.timeStamp;
+    return true;
+  }
+
+  /**
+   * Transforms point pointIn, given in sourceFrame at the given time, to targetFrame and stores the
+   * result in pointOut. Returns false if no transformation could be found.
+   */
+  public boolean transformPoint(Frame targetFrame, Frame sourceFrame, Time time, Point3d pointIn, Point3d pointOut) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrame, sourceFrame, time, transform)) return false;
+    transform.transformPoint(pointIn, pointOut);
+    return true;
   }
 
   /**
    * Transforms a stamped point to the given target frame and time, based on a given fixed frame, and
-   * returns the result in stampedOut.
+   * returns the result in stampedOut. Leaves stampedOut untouched if no transformation could be found;
+   * see tryTransformPoint.
    */
   public void transformPoint(String targetFrameID, Time targetTime, Stamped<Point3d> stampedIn,
                              String fixedFrameID, Stamped<Point3d> stampedOut) {
-    StampedTransform transform = lookupTransform(targetFrameID, targetTime, stampedIn.frameID, stampedIn.timeStamp, fixedFrameID);
+    tryTransformPoint(targetFrameID, targetTime, stampedIn, fixedFrameID, stampedOut);
+  }
+
+  /**
+   * Same as transformPoint(String, Time, Stamped, String, Stamped), but returns false if no
+   * transformation could be found.
+   */
+  public boolean tryTransformPoint(String targetFrameID, Time targetTime, Stamped<Point3d> stampedIn,
+                                   String fixedFrameID, Stamped<Point3d> stampedOut) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, targetTime, stampedIn.frameID, stampedIn.timeStamp, fixedFrameID, transform)) return false;
     transform.transformPoint(stampedIn.getData(), stampedOut.getData());
     stampedOut.frameID = targetFrameID;
     stampedOut.timeStamp = stampedIn.timeStamp;
+    return true;
   }
   /**
    * Transforms a stamped pose to the given target frame, and returns the result in stampedOut.
+   * Leaves stampedOut untouched if no transformation could be found; see tryTransformPose.
    */
   public void transformPose(String targetFrameID, Stamped<Matrix4d> stampedIn, Stamped<Matrix4d> stampedOut) {
-    StampedTransform transform = lookupTransform(targetFrameID, stampedIn.frameID, stampedIn.timeStamp);
+    tryTransformPose(targetFrameID, stampedIn, stampedOut);
+  }
+
+  /**
+   * Same as transformPose(String, Stamped, Stamped), but returns false if no transformation could be found.
+   */
+  public boolean tryTransformPose(String targetFrameID, Stamped<Matrix4d> stampedIn, Stamped<Matrix4d> stampedOut) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, stampedIn.frameID, stampedIn.timeStamp, transform)) return false;
     transform.transformPose(stampedIn.getData(), stampedOut.getData());
     stampedOut.frameID = targetFrameID;
     stampedOut.timeStamp = stampedIn.timeStamp;
+    return true;
   }
 
   /**
    * Transforms a stamped pose to the given target frame and time, based on a given fixed frame, and
-   * returns the result in stampedOut.
+   * returns the result in stampedOut. Leaves stampedOut untouched if no transformation could be found;
+   * see tryTransformPose.
    */
   public void transformPose(String targetFrameID, Time targetTime, Stamped<Matrix4d> stampedIn,
                             String fixedFrameID, Stamped<Matrix4d> stampedOut) {
-    StampedTransform transform = lookupTransform(targetFrameID, targetTime, stampedIn.frameID, stampedIn.timeStamp, fixedFrameID);
+    tryTransformPose(targetFrameID, targetTime, stampedIn, fixedFrameID, stampedOut);
+  }
+
+  /**
+   * Same as transformPose(String, Time, Stamped, String, Stamped), but returns false if no
+   * transformation could be found.
+   */
+  public boolean tryTransformPose(String targetFrameID, Time targetTime, Stamped<Matrix4d> stampedIn,
+                                  String fixedFrameID, Stamped<Matrix4d> stampedOut) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, targetTime, stampedIn.frameID, stampedIn.timeStamp, fixedFrameID, transform)) return false;
     transform.transformPose(stampedIn.getData(), stampedOut.getData());
     stampedOut.frameID = targetFrameID;
     stampedOut.timeStamp = stampedIn.timeStamp;
+    return true;
+  }
+
+  /**
+   * Transforms count packed points (see {@link StampedTransform#transformPoints(double[], int, int, int, double[], int)})
+   * from the given source frame at the given time to the target frame, using a single lookup. Large arrays
+   * (more than PARALLEL_THRESHOLD points) are split over multiple threads. Returns false (and leaves out
+   * untouched) if no transformation could be found.
+   */
+  public boolean transformPoints(String targetFrameID, String sourceFrameID, Time time,
+                                 double[] points, int offset, int count, int dimension, double[] out, int outOffset) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, transform)) return false;
+    transformPoints(transform, points, null, offset, count, dimension, out, null, outOffset);
+    return true;
+  }
+
+  /**
+   * Same as transformPoints(String, String, ...), with frames that have been resolved before.
+   */
+  public boolean transformPoints(Frame targetFrame, Frame sourceFrame, Time time,
+                                 double[] points, int offset, int count, int dimension, double[] out, int outOffset) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrame, sourceFrame, time, transform)) return false;
+    transformPoints(transform, points, null, offset, count, dimension, out, null, outOffset);
+    return true;
+  }
+
+  /**
+   * Same as transformPoints(String, String, ...), for packed float points.
+   */
+  public boolean transformPoints(String targetFrameID, String sourceFrameID, Time time,
+                                 float[] points, int offset, int count, int dimension, float[] out, int outOffset) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, transform)) return false;
+    transformPoints(transform, null, points, offset, count, dimension, null, out, outOffset);
+    return true;
+  }
+
+  /**
+   * Same as transformPoints(Frame, Frame, ...), for packed float points.
+   */
+  public boolean transformPoints(Frame targetFrame, Frame sourceFrame, Time time,
+                                 float[] points, int offset, int count, int dimension, float[] out, int outOffset) {
+    StampedTransform transform = lookupScratch.get().result;
+    if (!lookupTransform(targetFrame, sourceFrame, time, transform)) return false;
+    transformPoints(transform, null, points, offset, count, dimension, null, out, outOffset);
+    return true;
+  }
+
+  /**
+   * Applies transform to either the double or the float points, splitting large arrays in chunks
+   * that are transformed in parallel by the bulk executor.
+   */
+  private static void transformPoints(StampedTransform stampedTransform, final double[] dPoints, final float[] fPoints,
+                                      int offset, int count, final int dimension,
+                                      final double[] dOut, final float[] fOut, int outOffset) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (count <= PARALLEL_THRESHOLD || threads < 2) {
+      if (dPoints != null) {
+        stampedTransform.transformPoints(dPoints, offset, count, dimension, dOut, outOffset);
+      } else {
+        stampedTransform.transformPoints(fPoints, offset, count, dimension, fOut, outOffset);
+      }
+      return;
+    }
+
+    // the given transform is per-thread scratch of the caller: the workers get their own read-only copy
+    final RigidTransform transform = new RigidTransform(stampedTransform.getTransform());
+
+    ExecutorService executor = getBulkExecutor();
+    int chunk = (count + threads - 1) / threads;
+    Future<?>[] futures = new Future<?>[threads - 1];
+    for(int i = 0; i < threads - 1; i++) {
+      final int from = offset + i * chunk * dimension;
+      final int outFrom = outOffset + i * chunk * dimension;
+      final int n = Math.max(0, Math.min(chunk, count - i * chunk));
+      futures[i] = executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (dPoints != null) {
+              transform.transformPoints(dPoints, from, n, dimension, dOut, outFrom);
+            } else {
+              transform.transformPoints(fPoints, from, n, dimension, fOut, outFrom);
+            }
+          }
+        });
+    }
+    // the calling thread transforms the last chunk itself
+    int done = Math.min(count, (threads - 1) * chunk);
+    if (dPoints != null) {
+      transform.transformPoints(dPoints, offset + done * dimension, count - done, dimension, dOut, outOffset + done * dimension);
+    } else {
+      transform.transformPoints(fPoints, offset + done * dimension, count - done, dimension, fOut, outOffset + done * dimension);
+    }
+    for(Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (Exception e) {
+        throw new RuntimeException("Parallel point transformation failed", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the executor for parallel bulk transforms, creating it if necessary.
+   */
+  private static synchronized ExecutorService getBulkExecutor() {
+    if (bulkExecutor == null) {
+      bulkExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TfListener bulk transform");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+    return bulkExecutor;
   }
 
   /* **********************************************************************
@@ -259,17 +888,33 @@ public class TfListener {
    * null if no transformation could be found.
    */
   public StampedTransform lookupTransform(String targetFrameID, String sourceFrameID, Time time) {
+    StampedTransform out = StampedTransform.getIdentity();
+    if (!lookupTransform(targetFrameID, sourceFrameID, time, out)) return null;
+    return out;
+  }
+
+  /**
+   * Looks up the transform from the specified source frame to the target frame at a given time, and
+   * stores it in out. Returns false if no transformation could be found, in which case out is undefined.
+   *
+   * Once the path between the two frames is cached (see lookupPath), this method does not allocate
+   * any objects; it uses per-thread scratch objects instead. The time stamp of out refers to time.
+   */
+  public boolean lookupTransform(String targetFrameID, String sourceFrameID, Time time, StampedTransform out) {
+    long start = metricsEnabled ? System.nanoTime() : 0;
+
     // resolve the source and target IDs
     String resolvedTargetID = assertResolved(tfPrefix, targetFrameID);
     String resolvedSourceID = assertResolved(tfPrefix, sourceFrameID);
 
     // if source and target are the same, return the identity transform
     if (resolvedSourceID == resolvedTargetID) {
-      StampedTransform out = StampedTransform.getIdentity();
       out.timeStamp = time;
       out.frameID = resolvedSourceID;
       out.childFrameID = resolvedTargetID;
-      return out;
+      out.transform.setIdentity();
+      lookupScratch.get().failure = null;
+      return true;
     }
 
     // lookup source and target frame
@@ -278,68 +923,762 @@ public class TfListener {
 
     if (sourceFrame == null) {
 //      ros.logError("Cannot transform: source frame \"" + resolvedSourceID + "\" does not exist.");
-      return null;
+      LookupScratch scratch = lookupScratch.get();
+      scratch.failure = TfMetrics.FailureReason.UNKNOWN_FRAME;
+      if (metricsEnabled) scratch.stats.recordLookup(System.nanoTime() - start, -1, 0, TfMetrics.FailureReason.UNKNOWN_FRAME);
+      return false;
     }
 
     if (targetFrame == null) {
 //      ros.logError("Cannot transform: target frame \"" + resolvedTargetID + "\" does not exist.");
+      LookupScratch scratch = lookupScratch.get();
+      scratch.failure = TfMetrics.FailureReason.UNKNOWN_FRAME;
+      if (metricsEnabled) scratch.stats.recordLookup(System.nanoTime() - start, -1, 0, TfMetrics.FailureReason.UNKNOWN_FRAME);
+      return false;
+    }
+
+    return lookupTransform(targetFrame, sourceFrame, time, out);
+  }
+
+  /**
+   * Same as lookupTransform(String, String, Time, StampedTransform), but takes frames that have been
+   * resolved before (see getFrame and registerFrame), so that no frame ID handling is done per call.
+   */
+  public boolean lookupTransform(Frame targetFrame, Frame sourceFrame, Time time, StampedTransform out) {
+    LookupScratch scratch = lookupScratch.get();
+    if (!metricsEnabled) {
+      scratch.failure = lookupInto(targetFrame, sourceFrame, time, out, scratch);
+      return scratch.failure == null;
+    }
+    long start = System.nanoTime();
+    scratch.expansions = -1;
+    TfMetrics.FailureReason reason = lookupInto(targetFrame, sourceFrame, time, out, scratch);
+    scratch.stats.recordLookup(System.nanoTime() - start, scratch.expansions, scratch.pathLength, reason);
+    scratch.failure = reason;
+    return reason == null;
+  }
+
+  /**
+   * Returns the reason why the last lookupTransform call of the calling thread failed, or null if it
+   * succeeded. For example, NOT_CONNECTED means that the frames lie in separate trees of the tf graph.
+   */
+  public TfMetrics.FailureReason getLastLookupFailure() {
+    return lookupScratch.get().failure;
+  }
+
+  /**
+   * Implements lookupTransform(Frame, Frame, Time, StampedTransform). Returns null on success, otherwise
+   * the reason of failure. Stores the path length in scratch.pathLength, and the number of search
+   * expansions in scratch.expansions if the graph was searched.
+   */
+  private TfMetrics.FailureReason lookupInto(Frame targetFrame, Frame sourceFrame, Time time, StampedTransform out,
+                                             LookupScratch scratch) {
+    out.timeStamp = time;
+    out.frameID = sourceFrame.getFrameID();
+    out.childFrameID = targetFrame.getFrameID();
+    out.transform.setIdentity();
+
+    // if source and target are the same, return the identity transform
+    scratch.pathLength = 0;
+    if (sourceFrame == targetFrame) {
+      return null;
+    }
+
+    long t = time.totalNsecs();
+    CachedPath path = getCachedPath(targetFrame, sourceFrame);
+
+    if (path != null) {
+      scratch.pathLength = path.inverse.length + path.forward.length;
+      // multiply all transforms from source frame to frame F; runs of static edges are precomposed
+      for(int i = 0; i < path.inverseSegments.length; i++) {
+        TimeCache cache = path.inverseSegments[i];
+        if (cache == null) {
+          out.transform.mul(path.inverseStatic[i]);
+        } else {
+          if (!cache.getData(t, scratch.storage)) return TfMetrics.FailureReason.NO_DATA;
+          mulHop(out.transform, scratch.storage, scratch);
+        }
+      }
+      // multiply all transforms from frame F to target frame
+      for(int i = 0; i < path.forwardSegments.length; i++) {
+        TimeCache cache = path.forwardSegments[i];
+        if (cache == null) {
+          out.transform.mul(path.forwardStatic[i], out.transform);
+        } else {
+          if (!cache.getData(t, scratch.storage)) return TfMetrics.FailureReason.NO_DATA;
+          mulInverseHop(out.transform, scratch.storage, scratch);
+        }
+      }
       return null;
     }
 
+    // frames in separate trees: fail without searching
+    if (!mayBeConnected(targetFrame, sourceFrame)) {
+      return TfMetrics.FailureReason.NOT_CONNECTED;
+    }
+
     // list that will contain transformations from source frame to some frame F
     LinkedList<TransformStorage> inverseTransforms = new LinkedList<TransformStorage>();
     // list that will contain transformations from frame F to target frame
     LinkedList<TransformStorage> forwardTransforms = new LinkedList<TransformStorage>();
 
-    // fill the lists using lookupLists. If it returns FALSE, no transformation could be found.
-    if (!lookupLists(targetFrame, sourceFrame, time.totalNsecs(), inverseTransforms, forwardTransforms)) {
+    // fill the lists using the cached path or lookupLists. If it returns FALSE, no transformation could be found.
+    if (!lookupPath(targetFrame, sourceFrame, t, inverseTransforms, forwardTransforms)) {
       // TODO give warning
-//      ros.logError("Cannot transform: source + \"" + resolvedSourceID + "\" and target \""
-//                   + resolvedTargetID + "\" are not connected.");
-      return null;
+//      ros.logError("Cannot transform: source + \"" + sourceFrame.getFrameID() + "\" and target \""
+//                   + targetFrame.getFrameID() + "\" are not connected.");
+      return TfMetrics.FailureReason.NOT_CONNECTED;
     }
-
-    // create an identity transform with the correct time stamp
-    StampedTransform out = StampedTransform.getIdentity();
-    out.timeStamp = time;
+    scratch.pathLength = inverseTransforms.size() + forwardTransforms.size();
 
     // multiply all transforms from source frame to frame F TODO: right?
-    for(TransformStorage t : inverseTransforms) {
-      out.mul(StorageToStampedTransform(t));
+    for(TransformStorage ts : inverseTransforms) {
+      mulHop(out.transform, ts, scratch);
     }
 
     // multiply all transforms from frame F to target frame TODO: right?
-    for(TransformStorage t : forwardTransforms) {
-      out.mul(StorageToStampedTransform(t).invert(), out);
+    for(TransformStorage ts : forwardTransforms) {
+      mulInverseHop(out.transform, ts, scratch);
     }
 
-    // return transform
-    return out;
+    return null;
   }
 
   /**
-   * Returns the transform from the specified source frame at sourceTime to the target frame at a given
-   * targetTime, based on a given fixed frame; returns null if no transformation could be found.
+   * Sets out to out * T, with T transform ts.
    */
-  public StampedTransform lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID) {
-    // lookup transform from source to fixed frame, at sourceTime
-    StampedTransform t1 = lookupTransform(fixedID, sourceID, sourceTime);
-    // lookup transform from fixed frame to target frame, at targetTime
-    StampedTransform t2 = lookupTransform(targetID, fixedID, targetTime);
-
-    // if either of the two transformations did not succeed, return null
-    if (t1 == null || t2 == null) return null;
+  private static void mulHop(RigidTransform out, TransformStorage ts, LookupScratch scratch) {
+    scratch.hop.set(ts.getRotation(), ts.getTranslation());
+    out.mul(scratch.hop);
+  }
 
-    // multiply transformation t2 with t1, and return
-    t2.mul(t1);
-    return t2;
+  /**
+   * Sets out to inverse(T) * out, with T transform ts.
+   */
+  private static void mulInverseHop(RigidTransform out, TransformStorage ts, LookupScratch scratch) {
+    scratch.hop.set(ts.getRotation(), ts.getTranslation());
+    scratch.hop.invert();
+    out.mul(scratch.hop, out);
   }
 
   /**
-   * Performs a bi-directional best-first graph search on the tf graph to try to find a path from sourceFrame
-   * to targetFrame, at the given time. One priority queue is used to keep a sorted list of all search nodes
-   * (from both directions, ordered descending by their potential of contributing to a good solution). At
-   * the moment, the cost of the path from A to B is defined as the largest absolute difference between the
+   * Returns the transform from the specified source frame at sourceTime to the target frame at a given
+   * targetTime, based on a given fixed frame; returns null if no transformation could be found.
+   */
+  public StampedTransform lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID) {
+    StampedTransform out = StampedTransform.getIdentity();
+    if (!lookupTransform(targetID, targetTime, sourceID, sourceTime, fixedID, out)) return null;
+    return out;
+  }
+
+  /**
+   * Looks up the transform from the specified source frame at sourceTime to the target frame at a given
+   * targetTime, based on a given fixed frame, and stores it in out. Returns false if no transformation
+   * could be found. Like the non-fixed-frame variant, this does not allocate once the paths are cached.
+   */
+  public boolean lookupTransform(String targetID, Time targetTime, String sourceID, Time sourceTime, String fixedID,
+                                 StampedTransform out) {
+    StampedTransform t1 = lookupScratch.get().fixed;
+    // lookup transform from source to fixed frame, at sourceTime
+    if (!lookupTransform(fixedID, sourceID, sourceTime, t1)) return false;
+    // lookup transform from fixed frame to target frame, at targetTime
+    if (!lookupTransform(targetID, fixedID, targetTime, out)) return false;
+
+    // multiply transformation t2 with t1
+    out.mul(t1);
+    return true;
+  }
+
+  /**
+   * Returns the transforms from the specified source frame to the target frame at startTime and then
+   * every step until endTime (inclusive); returns null if no transformation could be found.
+   * See lookupTransformSeries(Frame, Frame, Time, Time, Duration).
+   */
+  public TransformSeries lookupTransformSeries(String targetFrameID, String sourceFrameID, Time startTime, Time endTime,
+                                               Duration step) {
+    Frame targetFrame = getFrame(targetFrameID);
+    Frame sourceFrame = getFrame(sourceFrameID);
+    if (targetFrame == null || sourceFrame == null) return null;
+    return lookupTransformSeries(targetFrame, sourceFrame, startTime, endTime, step);
+  }
+
+  /**
+   * Returns the transforms from the specified source frame to the target frame at the native time stamps
+   * of the tf data, i.e., at every stamp in [startTime, endTime] of the edges on the path; returns null
+   * if no transformation could be found.
+   */
+  public TransformSeries lookupTransformSeries(String targetFrameID, String sourceFrameID, Time startTime, Time endTime) {
+    return lookupTransformSeries(targetFrameID, sourceFrameID, startTime, endTime, null);
+  }
+
+  /**
+   * Returns the transforms from the specified source frame to the target frame at startTime and then
+   * every step until endTime (inclusive), or at the native time stamps of the edges on the path within
+   * [startTime, endTime] if step is null. Returns null if no transformation could be found or if endTime
+   * lies before startTime.
+   *
+   * Unlike a lookupTransform per sample, the path is resolved once (at startTime), and each edge is read
+   * with a cursor that only moves forward, so the cost is linear in the number of samples. If the path
+   * only has static edges, the native series holds a single sample at startTime.
+   */
+  public TransformSeries lookupTransformSeries(Frame targetFrame, Frame sourceFrame, Time startTime, Time endTime,
+                                               Duration step) {
+    long start = startTime.totalNsecs();
+    long end = endTime.totalNsecs();
+    if (end < start) return null;
+    if (step != null && step.totalNsecs() <= 0) return null;
+
+    // resolve the path once
+    TimeCache[] inverse, forward;
+    CachedPath path = getCachedPath(targetFrame, sourceFrame);
+    if (sourceFrame == targetFrame) {
+      inverse = new TimeCache[0];
+      forward = new TimeCache[0];
+    } else if (path != null) {
+      inverse = path.inverse;
+      forward = path.forward;
+    } else {
+      LinkedList<TransformStorage> inverseTransforms = new LinkedList<TransformStorage>();
+      LinkedList<TransformStorage> forwardTransforms = new LinkedList<TransformStorage>();
+      if (!lookupPath(targetFrame, sourceFrame, start, inverseTransforms, forwardTransforms)) return null;
+      inverse = toCaches(inverseTransforms);
+      forward = toCaches(forwardTransforms);
+    }
+
+    // copy the relevant range of every edge
+    TimeCache.Cursor[] inverseCursors = new TimeCache.Cursor[inverse.length];
+    TimeCache.Cursor[] forwardCursors = new TimeCache.Cursor[forward.length];
+    for(int i = 0; i < inverse.length; i++) {
+      inverseCursors[i] = inverse[i].cursor(start, end);
+      if (inverseCursors[i] == null) return null;
+    }
+    for(int i = 0; i < forward.length; i++) {
+      forwardCursors[i] = forward[i].cursor(start, end);
+      if (forwardCursors[i] == null) return null;
+    }
+
+    long[] stamps;
+    if (step != null) {
+      long count = (end - start) / step.totalNsecs() + 1;
+      if (count > Integer.MAX_VALUE / TransformSeries.STRIDE) return null;
+      stamps = new long[(int) count];
+      for(int i = 0; i < stamps.length; i++) {
+        stamps[i] = start + i * step.totalNsecs();
+      }
+    } else {
+      stamps = mergeStamps(inverseCursors, forwardCursors, start, end);
+    }
+
+    // compose the transforms of the edges per sample, like lookupTransform
+    TransformSeries series = new TransformSeries(sourceFrame.getFrameID(), targetFrame.getFrameID(), stamps);
+    LookupScratch scratch = lookupScratch.get();
+    RigidTransform pose = new RigidTransform();
+    for(int i = 0; i < stamps.length; i++) {
+      long t = stamps[i];
+      pose.setIdentity();
+      for(TimeCache.Cursor cursor : inverseCursors) {
+        cursor.get(t, scratch.storage);
+        mulHop(pose, scratch.storage, scratch);
+      }
+      for(TimeCache.Cursor cursor : forwardCursors) {
+        cursor.get(t, scratch.storage);
+        mulInverseHop(pose, scratch.storage, scratch);
+      }
+      series.set(i, pose);
+    }
+    return series;
+  }
+
+  /**
+   * Merges the time stamps in [start, end] of the given (non-static) cursors into one ascending series
+   * without duplicates. Returns {start} if there are none.
+   */
+  private static long[] mergeStamps(TimeCache.Cursor[] inverseCursors, TimeCache.Cursor[] forwardCursors,
+                                    long start, long end) {
+    TimeCache.Cursor[] cursors = new TimeCache.Cursor[inverseCursors.length + forwardCursors.length];
+    System.arraycopy(inverseCursors, 0, cursors, 0, inverseCursors.length);
+    System.arraycopy(forwardCursors, 0, cursors, inverseCursors.length, forwardCursors.length);
+
+    // position of every cursor: its first stamp not before start
+    int[] positions = new int[cursors.length];
+    int total = 0;
+    for(int c = 0; c < cursors.length; c++) {
+      long[] stamps = cursors[c].stamps;
+      int p = 0;
+      while (p < stamps.length && stamps[p] < start) p++;
+      positions[c] = p;
+      total += stamps.length - p;
+    }
+
+    long[] merged = new long[total];
+    int size = 0;
+    while (true) {
+      // take the smallest stamp among the cursors
+      int next = -1;
+      for(int c = 0; c < cursors.length; c++) {
+        if (cursors[c].isStatic || positions[c] >= cursors[c].stamps.length) continue;
+        long stamp = cursors[c].stamps[positions[c]];
+        if (stamp > end) continue;
+        if (next < 0 || stamp < cursors[next].stamps[positions[next]]) next = c;
+      }
+      if (next < 0) break;
+      long stamp = cursors[next].stamps[positions[next]++];
+      if (size == 0 || stamp != merged[size - 1]) merged[size++] = stamp;
+    }
+
+    if (size == 0) return new long[] {start};
+    long[] result = new long[size];
+    System.arraycopy(merged, 0, result, 0, size);
+    return result;
+  }
+
+  /* **********************************************************************
+   * *                           WAIT METHODS                             *
+   * ********************************************************************** */
+
+  /**
+   * Returns true if the transform from source frame to target frame can be computed at the given time
+   * without extrapolation, i.e., if the time lies within the buffered data of every edge on the path.
+   */
+  public boolean canTransform(String targetFrameID, String sourceFrameID, Time time) {
+    Frame targetFrame = getFrame(targetFrameID);
+    Frame sourceFrame = getFrame(sourceFrameID);
+    if (targetFrame == null || sourceFrame == null) return false;
+    return canTransform(targetFrame, sourceFrame, time);
+  }
+
+  /**
+   * Same as canTransform(String, String, Time), with frames that have been resolved before.
+   */
+  public boolean canTransform(Frame targetFrame, Frame sourceFrame, Time time) {
+    if (targetFrame == sourceFrame) return true;
+    long t = time.totalNsecs();
+    ArrayList<TimeCache> caches = new ArrayList<TimeCache>();
+    if (!collectPathCaches(targetFrame, sourceFrame, t, caches)) return false;
+    for(TimeCache cache : caches) {
+      if (!cache.covers(t)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Requests the transform from source frame to target frame at the given time, without blocking. The
+   * returned future completes as soon as tf data arrives that allows computing the transform without
+   * extrapolation (see canTransform), or with a null result after timeoutMillis (no time-out if <= 0).
+   */
+  public TransformFuture waitForTransform(String targetFrameID, String sourceFrameID, Time time, long timeoutMillis) {
+    return waitForTransform(targetFrameID, sourceFrameID, time, timeoutMillis, null);
+  }
+
+  /**
+   * Same as waitForTransform(String, String, Time, long), but also invokes the given callback on completion.
+   * The callback is invoked on the thread inserting tf data, or on a timer thread if the request times out.
+   */
+  public TransformFuture waitForTransform(String targetFrameID, String sourceFrameID, Time time, long timeoutMillis,
+                                         TransformFuture.Callback callback) {
+    Frame targetFrame = registerFrame(targetFrameID);
+    Frame sourceFrame = registerFrame(sourceFrameID);
+    final TransformFuture future = new TransformFuture(this, targetFrame, sourceFrame, time, callback);
+
+    // register first, so that no insert can be missed between the check below and the registration
+    addWatcher(future);
+    future.edgeChanged(this, time.totalNsecs());
+    if (future.isDone()) {
+      return future;
+    }
+
+    if (timeoutMillis > 0) {
+      synchronized (watcherLock) {
+        if (timeoutTimer == null) {
+          timeoutTimer = new Timer("TfListener timeouts", true);
+        }
+        future.timeoutTask = new TimerTask() {
+            @Override
+            public void run() {
+              future.timeout();
+            }
+          };
+        timeoutTimer.schedule(future.timeoutTask, timeoutMillis);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Subscribes to changes of the transform from source frame to target frame. The callback is invoked
+   * (on the thread inserting tf data) when data arrives on an edge of the path and the transform at the
+   * latest time covered by all edges differs from the last reported one by more than translationEpsilon
+   * (in meters) or rotationEpsilon (in radians), but at most maxRate times per second (no limit if <= 0).
+   * The current transform, if any, is reported right away. Call cancel() on the result to unsubscribe.
+   */
+  public TransformSubscription subscribeTransform(String targetFrameID, String sourceFrameID,
+                                                  double translationEpsilon, double rotationEpsilon, double maxRate,
+                                                  TransformSubscription.Callback callback) {
+    Frame targetFrame = registerFrame(targetFrameID);
+    Frame sourceFrame = registerFrame(sourceFrameID);
+    TransformSubscription subscription = new TransformSubscription(this, targetFrame, sourceFrame,
+                                                                   translationEpsilon, rotationEpsilon, maxRate, callback);
+    addWatcher(subscription);
+    subscription.edgeChanged(this, 0);
+    return subscription;
+  }
+
+  /**
+   * Returns the requested transform of the given request if it can be computed without extrapolation,
+   * otherwise null.
+   */
+  StampedTransform tryTransform(TransformFuture future) {
+    if (!canTransform(future.targetFrame, future.sourceFrame, future.time)) return null;
+    StampedTransform out = StampedTransform.getIdentity();
+    if (!lookupTransform(future.targetFrame, future.sourceFrame, future.time, out)) return null;
+    return out;
+  }
+
+  /**
+   * Returns the latest time (in nanoseconds) covered by all dynamic edges on the path from sourceFrame to
+   * targetFrame, defaultTime if the path only has static edges, or -1 if the frames are not connected.
+   */
+  long getLatestCommonTime(Frame targetFrame, Frame sourceFrame, long defaultTime) {
+    if (targetFrame == sourceFrame) return defaultTime;
+    ArrayList<TimeCache> caches = new ArrayList<TimeCache>();
+    if (!collectPathCaches(targetFrame, sourceFrame, defaultTime, caches)) return -1;
+    long latest = Long.MAX_VALUE;
+    for(TimeCache cache : caches) {
+      if (!cache.isStatic()) {
+        long newest = cache.getNewestTimeStamp();
+        if (newest < 0) return -1;
+        latest = Math.min(latest, newest);
+      }
+    }
+    return (latest == Long.MAX_VALUE) ? defaultTime : latest;
+  }
+
+  /**
+   * Notifies the watchers that depend on an edge of the given child frame of new data with the given
+   * time stamp. If the topology of the graph changed, the watchers whose paths may include one of the
+   * new edges are re-indexed and notified as well.
+   */
+  private void notifyWatchers(Frame childFrame, long stamp) {
+    HashSet<PathWatcher> candidates = new HashSet<PathWatcher>();
+    synchronized (watcherLock) {
+      int version;
+      ArrayList<Frame> newEdges;
+      synchronized (newEdgeLock) {
+        version = topologyVersion.get();
+        newEdges = newEdgeFrames;
+        if (!newEdges.isEmpty()) newEdgeFrames = new ArrayList<Frame>();
+      }
+      if (version != watcherVersion) {
+        // a path can only change through a new edge whose child frame is an ancestor of its source or
+        // target frame. If not all new edges were logged (e.g. added directly through Frame, or before
+        // there were watchers), all watchers are re-indexed.
+        boolean all = (version - watcherVersion != newEdges.size());
+        watcherVersion = version;
+        HashSet<Frame> changedFrames = new HashSet<Frame>(newEdges);
+        HashMap<Frame, Boolean> reached = new HashMap<Frame, Boolean>();
+        addAffectedWatchers(unconnectedWatchers, all, changedFrames, reached, candidates);
+        for(ArrayList<PathWatcher> list : watchersByFrame.values()) {
+          addAffectedWatchers(list, all, changedFrames, reached, candidates);
+        }
+        for(PathWatcher watcher : candidates) {
+          unindexWatcher(watcher);
+          indexWatcher(watcher);
+        }
+      }
+      ArrayList<PathWatcher> list = watchersByFrame.get(childFrame);
+      if (list != null) candidates.addAll(list);
+    }
+
+    for(PathWatcher watcher : candidates) {
+      watcher.edgeChanged(this, stamp);
+    }
+  }
+
+  /**
+   * Adds the watchers of the given list whose source or target frame has an ancestor (or is a frame) in
+   * changedFrames to affected, or all of them if all is set.
+   */
+  private static void addAffectedWatchers(ArrayList<PathWatcher> watchers, boolean all, HashSet<Frame> changedFrames,
+                                          HashMap<Frame, Boolean> reached, HashSet<PathWatcher> affected) {
+    for(PathWatcher watcher : watchers) {
+      if (all || hasAncestorIn(watcher.sourceFrame, changedFrames, reached)
+          || hasAncestorIn(watcher.targetFrame, changedFrames, reached)) {
+        affected.add(watcher);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the given frame or one of its ancestors is in frames. Results are memoized in reached.
+   */
+  private static boolean hasAncestorIn(Frame frame, HashSet<Frame> frames, HashMap<Frame, Boolean> reached) {
+    if (frames.contains(frame)) return true;
+    Set<Frame> parentFrames = frame.getParentFrames();
+    if (parentFrames.isEmpty()) return false;
+    Boolean result = reached.get(frame);
+    if (result != null) return result;
+    reached.put(frame, Boolean.FALSE); // guards against cycles
+    boolean found = false;
+    for(Frame parentFrame : parentFrames) {
+      if (hasAncestorIn(parentFrame, frames, reached)) {
+        found = true;
+        break;
+      }
+    }
+    reached.put(frame, found);
+    return found;
+  }
+
+  /**
+   * Adds the given watcher to the index.
+   */
+  void addWatcher(PathWatcher watcher) {
+    synchronized (watcherLock) {
+      indexWatcher(watcher);
+    }
+  }
+
+  /**
+   * Removes the given watcher from the index, if it is still there.
+   */
+  void removeWatcher(PathWatcher watcher) {
+    synchronized (watcherLock) {
+      unindexWatcher(watcher);
+    }
+  }
+
+  /**
+   * Indexes the given watcher by the child frames of the edges on its current path, or as unconnected
+   * if there is no path yet. Caller must hold watcherLock.
+   */
+  private void indexWatcher(PathWatcher watcher) {
+    ArrayList<TimeCache> caches = new ArrayList<TimeCache>();
+    if (watcher.targetFrame == watcher.sourceFrame
+        || !collectPathCaches(watcher.targetFrame, watcher.sourceFrame, watcher.getPathTime(), caches)) {
+      watcher.indexFrames = null;
+      unconnectedWatchers.add(watcher);
+    } else {
+      watcher.indexFrames = new ArrayList<Frame>();
+      for(TimeCache cache : caches) {
+        Frame frame = cache.childFrame;
+        if (watcher.indexFrames.contains(frame)) continue;
+        watcher.indexFrames.add(frame);
+        ArrayList<PathWatcher> list = watchersByFrame.get(frame);
+        if (list == null) {
+          list = new ArrayList<PathWatcher>();
+          watchersByFrame.put(frame, list);
+        }
+        list.add(watcher);
+      }
+    }
+    watcherCount++;
+  }
+
+  /**
+   * Removes the given watcher from the index. Caller must hold watcherLock.
+   */
+  private boolean unindexWatcher(PathWatcher watcher) {
+    boolean removed = false;
+    if (watcher.indexFrames == null) {
+      removed = unconnectedWatchers.remove(watcher);
+    } else {
+      for(Frame frame : watcher.indexFrames) {
+        ArrayList<PathWatcher> list = watchersByFrame.get(frame);
+        if (list != null && list.remove(watcher)) {
+          removed = true;
+          if (list.isEmpty()) watchersByFrame.remove(frame);
+        }
+      }
+    }
+    if (removed) watcherCount--;
+    return removed;
+  }
+
+  /**
+   * Adds the time caches of all edges on the path from sourceFrame to targetFrame to caches. Returns false
+   * if the frames are not connected.
+   */
+  private boolean collectPathCaches(Frame targetFrame, Frame sourceFrame, long time, ArrayList<TimeCache> caches) {
+    CachedPath path = getCachedPath(targetFrame, sourceFrame);
+    if (path != null) {
+      for(TimeCache cache : path.inverse) caches.add(cache);
+      for(TimeCache cache : path.forward) caches.add(cache);
+      return true;
+    }
+
+    LinkedList<TransformStorage> inverseTransforms = new LinkedList<TransformStorage>();
+    LinkedList<TransformStorage> forwardTransforms = new LinkedList<TransformStorage>();
+    if (!lookupPath(targetFrame, sourceFrame, time, inverseTransforms, forwardTransforms)) return false;
+    for(TimeCache cache : toCaches(inverseTransforms)) caches.add(cache);
+    for(TimeCache cache : toCaches(forwardTransforms)) caches.add(cache);
+    return true;
+  }
+
+  /**
+   * Fills the transform lists like lookupLists, but uses the cached path from sourceFrame to targetFrame if
+   * there is one that is still valid. Otherwise, lookupLists is used and the resulting path is cached if it
+   * is the only possible path (i.e., all ancestors of source and target frame have at most one parent).
+   */
+  protected boolean lookupPath(Frame targetFrame, Frame sourceFrame, long time,
+                               LinkedList<TransformStorage> inverseTransforms, LinkedList<TransformStorage> forwardTransforms) {
+    int version = topologyVersion.get();
+    int staticVersion = this.staticVersion.get();
+
+    CachedPath path = getCachedPath(targetFrame, sourceFrame);
+    if (path != null) {
+      for(TimeCache cache : path.inverse) {
+        inverseTransforms.addLast(cache.getData(time));
+      }
+      for(TimeCache cache : path.forward) {
+        forwardTransforms.addLast(cache.getData(time));
+      }
+      return true;
+    }
+
+    // frames in different trees: no need to search
+    if (!mayBeConnected(targetFrame, sourceFrame)) {
+      return false;
+    }
+
+    if (!lookupLists(targetFrame, sourceFrame, time, inverseTransforms, forwardTransforms)) {
+      return false;
+    }
+
+    // only cache the path if it cannot depend on the time of the lookup
+    if (hasSingleAncestorChain(sourceFrame) && hasSingleAncestorChain(targetFrame)) {
+      path = new CachedPath(version, staticVersion, toCaches(inverseTransforms), toCaches(forwardTransforms));
+      ConcurrentHashMap<Frame, CachedPath> targets = pathCache.get(sourceFrame);
+      if (targets == null) {
+        targets = new ConcurrentHashMap<Frame, CachedPath>();
+        ConcurrentHashMap<Frame, CachedPath> existing = pathCache.putIfAbsent(sourceFrame, targets);
+        if (existing != null) targets = existing;
+      }
+      targets.put(targetFrame, path);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the cached path from sourceFrame to targetFrame, or null if there is none or if it is outdated.
+   */
+  protected CachedPath getCachedPath(Frame targetFrame, Frame sourceFrame) {
+    ConcurrentHashMap<Frame, CachedPath> targets = pathCache.get(sourceFrame);
+    if (targets == null) return null;
+    CachedPath path = targets.get(targetFrame);
+    if (path == null || path.version != topologyVersion.get() || path.staticVersion != staticVersion.get()) return null;
+    return path;
+  }
+
+  /**
+   * Returns true if the given frame and all of its ancestors have at most one parent frame.
+   */
+  private static boolean hasSingleAncestorChain(Frame frame) {
+    // bounded, in case the (invalid) tf graph contains a cycle
+    for(int depth = 0; frame != null; depth++) {
+      Set<Frame> parents = frame.getParentFrames();
+      if (parents.size() > 1 || depth > 1000) return false;
+      frame = parents.isEmpty() ? null : parents.iterator().next();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the time caches the given transforms were taken from, in the same order.
+   */
+  private static TimeCache[] toCaches(LinkedList<TransformStorage> transforms) {
+    TimeCache[] caches = new TimeCache[transforms.size()];
+    int i = 0;
+    for(TransformStorage t : transforms) {
+      caches[i++] = t.getChildFrame().getTimeCache(t.getParentFrame());
+    }
+    return caches;
+  }
+
+  /**
+   * Path from a source frame to a target frame, as found by lookupLists, stored as the time caches
+   * of its edges. Only valid as long as the topology version and the static version are unchanged.
+   *
+   * For composition, the path is also stored as segments: a segment is either a dynamic edge (its time
+   * cache) or a run of consecutive static edges, precomposed into a single transform.
+   */
+  protected static class CachedPath {
+    /** Topology version at the time the path was found */
+    final int version;
+    /** Static version at the time the path was found (static runs are precomposed) */
+    final int staticVersion;
+    /** Time caches of the transforms from source frame to some frame F */
+    final TimeCache[] inverse;
+    /** Time caches of the transforms from frame F to target frame */
+    final TimeCache[] forward;
+    /** Segments from source frame to F: the time cache of a dynamic edge, or null for a static run */
+    final TimeCache[] inverseSegments;
+    /** Product of the static runs from source frame to F (null for dynamic edges) */
+    final RigidTransform[] inverseStatic;
+    /** Segments from F to target frame: the time cache of a dynamic edge, or null for a static run */
+    final TimeCache[] forwardSegments;
+    /** Inverted product of the static runs from F to target frame (null for dynamic edges) */
+    final RigidTransform[] forwardStatic;
+
+    CachedPath(int version, int staticVersion, TimeCache[] inverse, TimeCache[] forward) {
+      this.version = version;
+      this.staticVersion = staticVersion;
+      this.inverse = inverse;
+      this.forward = forward;
+
+      ArrayList<TimeCache> segments = new ArrayList<TimeCache>();
+      ArrayList<RigidTransform> statics = new ArrayList<RigidTransform>();
+      toSegments(inverse, false, segments, statics);
+      inverseSegments = segments.toArray(new TimeCache[segments.size()]);
+      inverseStatic = statics.toArray(new RigidTransform[statics.size()]);
+
+      segments.clear();
+      statics.clear();
+      toSegments(forward, true, segments, statics);
+      forwardSegments = segments.toArray(new TimeCache[segments.size()]);
+      forwardStatic = statics.toArray(new RigidTransform[statics.size()]);
+    }
+
+    /**
+     * Splits the given edges into segments, composing runs of static edges in the same order as the
+     * lookup would (right-multiplied for inverse edges, inverted and left-multiplied for forward edges).
+     */
+    private static void toSegments(TimeCache[] caches, boolean forward,
+                                   ArrayList<TimeCache> segments, ArrayList<RigidTransform> statics) {
+      TransformStorage storage = new TransformStorage(new Vector3d(), new Quat4d(), 0, null, null);
+      RigidTransform hop = new RigidTransform();
+      RigidTransform run = null;
+      for(TimeCache cache : caches) {
+        if (cache.isStatic() && cache.getData(0, storage)) {
+          hop.set(storage.getRotation(), storage.getTranslation());
+          if (run == null) run = new RigidTransform();
+          if (forward) {
+            hop.invert();
+            run.mul(hop, run);
+          } else {
+            run.mul(hop);
+          }
+        } else {
+          if (run != null) {
+            segments.add(null);
+            statics.add(run);
+            run = null;
+          }
+          segments.add(cache);
+          statics.add(null);
+        }
+      }
+      if (run != null) {
+        segments.add(null);
+        statics.add(run);
+      }
+    }
+  }
+
+  /**
+   * Performs a bi-directional best-first graph search on the tf graph to try to find a path from sourceFrame
+   * to targetFrame, at the given time. One priority queue is used to keep a sorted list of all search nodes
+   * (from both directions, ordered descending by their potential of contributing to a good solution). At
+   * the moment, the cost of the path from A to B is defined as the largest absolute difference between the
    * time stamps of the transforms from A to B and the given time point. This corresponds to searching for a
    * transform path that needs the least amount of inter- and extrapolation.
    *
@@ -376,10 +1715,12 @@ public class TfListener {
     Q.add(targetNode);
 
     // perform the search
+    int expansions = 0;
     while(!Q.isEmpty()) {
       // poll most potential search node from queue
       SearchNode<Frame> frameNode = Q.poll();
       Frame frame = frameNode.content;
+      expansions++;
 
       // if the node is both visited from the source and from the target node, a path has been found
       if (frameNode.backwardStep != null && frameNode.forwardStep != null) {
@@ -398,6 +1739,7 @@ public class TfListener {
           forwardTransforms.addLast(node.forwardStep.content.getData(time, node.content));
           node = node.forwardStep;
         }
+        lookupScratch.get().expansions = expansions;
         return true;
       }
 
@@ -440,9 +1782,184 @@ public class TfListener {
     }
 
     // target and source frames are not connected.
+    lookupScratch.get().expansions = expansions;
     return false;
   }
 
+  /**
+   * Objects reused by the lookups of a single thread.
+   */
+  private static class LookupScratch {
+    /** Transform of a single edge, as read from its time cache */
+    final TransformStorage storage = new TransformStorage(new Vector3d(), new Quat4d(), 0, null, null);
+    /** Transform of a single edge */
+    final RigidTransform hop = new RigidTransform();
+    /** Result of the lookups done by the transform methods */
+    final StampedTransform result = StampedTransform.getIdentity();
+    /** Source-to-fixed-frame transform of fixed frame lookups */
+    final StampedTransform fixed = StampedTransform.getIdentity();
+    /** Number of search expansions of the last graph search on this thread */
+    int expansions;
+    /** Number of edges on the path of the last lookup on this thread */
+    int pathLength;
+    /** Reason why the last lookup on this thread failed, or null */
+    TfMetrics.FailureReason failure;
+    /** Lookup metrics of this thread */
+    final TfMetrics.LookupStats stats;
+
+    LookupScratch(TfMetrics.LookupStats stats) {
+      this.stats = stats;
+    }
+  }
+
+  /**
+   * Single consumer of an ingest queue: drains it in batches, and inserts each batch grouped by edge, so
+   * that the time cache lookup, memory accounting and watcher notification are done once per edge.
+   */
+  private class IngestWorker implements Runnable {
+    /** Maximum number of transforms per batch */
+    static final int BATCH_SIZE = 1024;
+    /** Handles above this limit do not fit in a sort key, and are inserted one by one */
+    static final int MAX_KEY_HANDLE = 1 << 20;
+
+    final TfIngestQueue queue;
+    final Thread thread;
+    volatile boolean running = true;
+    final TransformStamped[] batch = new TransformStamped[BATCH_SIZE];
+    /** Sort keys of the batch: child handle, parent handle, index in the batch */
+    final long[] keys = new long[BATCH_SIZE];
+    /** Edges updated by the batches of the worker thread */
+    final IngestUpdates updates = new IngestUpdates();
+
+    IngestWorker(TfIngestQueue queue) {
+      this.queue = queue;
+      this.thread = new Thread(this, "TfListener ingest");
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        if (ingestBatch(updates) == 0) {
+          LockSupport.park(this);
+        }
+      }
+      while (ingestBatch(updates) > 0) {}
+    }
+
+    /**
+     * Stops the worker after it drained its queue, and waits for it.
+     */
+    void shutdown() {
+      running = false;
+      LockSupport.unpark(thread);
+      boolean interrupted = false;
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Drains a batch from the queue, inserts it and notifies the watchers of the updated edges; returns
+     * the number of drained transforms. The watchers are notified without holding the monitor of this
+     * worker, so that their callbacks do not hold up other threads draining the queue. Updates must not
+     * be shared with other threads.
+     */
+    int ingestBatch(IngestUpdates updates) {
+      int n = insertBatch(updates);
+
+      // notify waitForTransform requests and subscriptions once per updated edge
+      int updated = updates.count;
+      if (watcherCount > 0) {
+        for(int i = 0; i < updated; i++) {
+          notifyWatchers(updates.frames[i], updates.stamps[i]);
+        }
+      }
+      Arrays.fill(updates.frames, 0, updated, null);
+      updates.count = 0;
+      return n;
+    }
+
+    /**
+     * Drains a batch from the queue and inserts it, storing the updated edges in updates; returns the
+     * number of drained transforms. Synchronized, so that producers can help draining a queue whose
+     * worker was shut down.
+     */
+    private synchronized int insertBatch(IngestUpdates updates) {
+      int n = queue.drain(batch, BATCH_SIZE);
+      if (n == 0) return 0;
+
+      Frame[] updatedFrames = updates.frames;
+      long[] updatedStamps = updates.stamps;
+      int updated = 0;
+      synchronized (writeLock) {
+        // resolve the frames, and sort the transforms by edge (keeping their order within an edge)
+        int count = 0;
+        for(int i = 0; i < n; i++) {
+          TransformStamped transform = batch[i];
+          Frame frame = ingestFrame(transform.getChildFrameId());
+          Frame parentFrame = (frame != null) ? ingestFrame(transform.getHeader().getFrameId()) : null;
+          if (parentFrame == null || parentFrame == frame) continue;
+          if (frame.getHandle() >= MAX_KEY_HANDLE || parentFrame.getHandle() >= MAX_KEY_HANDLE) {
+            if (ingestTransform(transform, frame, false)) {
+              updatedFrames[updated] = frame;
+              updatedStamps[updated++] = transform.getHeader().getStamp().totalNsecs();
+            }
+            continue;
+          }
+          keys[count++] = ((long) frame.getHandle() << 40) | ((long) parentFrame.getHandle() << 20) | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        Frame[] table = frameTable;
+        for(int start = 0, end; start < count; start = end) {
+          long edge = keys[start] >>> 20;
+          for(end = start + 1; end < count && keys[end] >>> 20 == edge; end++) {}
+
+          Frame frame = table[(int) (edge >>> 20)];
+          TimeCache cache = lookupOrInsertTimeCache(frame, table[(int) (edge & (MAX_KEY_HANDLE - 1))]);
+          long memoryBefore = cache.getMemoryUsage();
+          long newest = Long.MIN_VALUE;
+          for(int k = start; k < end; k++) {
+            TransformStamped transform = batch[(int) (keys[k] & (MAX_KEY_HANDLE - 1))];
+            Vector3 t = transform.getTransform().getTranslation();
+            Quaternion r = transform.getTransform().getRotation();
+            long stamp = transform.getHeader().getStamp().totalNsecs();
+            if (insertSample(cache, stamp, t.getX(), t.getY(), t.getZ(), r.getX(), r.getY(), r.getZ(), r.getW(),
+                             false)) {
+              newest = Math.max(newest, stamp);
+            }
+          }
+          memoryUsage += cache.getMemoryUsage() - memoryBefore;
+          if (newest != Long.MIN_VALUE) {
+            updatedFrames[updated] = frame;
+            updatedStamps[updated++] = newest;
+          }
+        }
+        if (memoryBudget > 0 && memoryUsage > memoryBudget) {
+          enforceMemoryBudget();
+        }
+      }
+      Arrays.fill(batch, 0, n, null);
+      updates.count = updated;
+      return n;
+    }
+  }
+
+  /**
+   * Child frames and newest stamps of the edges updated by an ingested batch.
+   */
+  private static class IngestUpdates {
+    final Frame[] frames = new Frame[IngestWorker.BATCH_SIZE];
+    final long[] stamps = new long[IngestWorker.BATCH_SIZE];
+    int count;
+  }
+
   /**
    * Wrapper search node that can be used for bi-directional best-first search.
    * Keeps track of search path by maintaining links to parent nodes, in both directions
@@ -488,26 +2005,363 @@ public class TfListener {
   }
 
   /* **********************************************************************
-   * *                          HELPER METHODS                            *
+   * *                          STORAGE LIMITS                            *
+   * ********************************************************************** */
+
+  /**
+   * Sets the storage time (horizon) of all edges whose parent and child frame IDs match the given
+   * patterns. A pattern is a frame ID that may contain '*' wildcards, e.g. "*" or "/base_*". The rule
+   * applies to existing edges right away and to edges created later. Rules set later take precedence;
+   * setting a rule with the same patterns again replaces it.
+   */
+  public void setStorageTime(String parentPattern, String childPattern, Duration storageTime) {
+    StorageRule rule = new StorageRule(resolvePattern(parentPattern), resolvePattern(childPattern),
+                                       storageTime.totalNsecs());
+    synchronized (writeLock) {
+      for(int i = 0; i < storageRules.size(); i++) {
+        StorageRule other = storageRules.get(i);
+        if (other.parentPattern.equals(rule.parentPattern) && other.childPattern.equals(rule.childPattern)) {
+          storageRules.remove(i);
+          break;
+        }
+      }
+      storageRules.add(rule);
+      TfRecorder recorder = this.recorder;
+      if (recorder != null) {
+        recorder.recordStorageTime(rule.parentPattern, rule.childPattern, rule.storageTime);
+      }
+      applyStorageTimes();
+    }
+  }
+
+  /**
+   * Sets the storage time of edges that match no storage rule (MAX_STORAGE_TIME by default).
+   */
+  public void setDefaultStorageTime(Duration storageTime) {
+    synchronized (writeLock) {
+      defaultStorageTime = storageTime.totalNsecs();
+      TfRecorder recorder = this.recorder;
+      if (recorder != null) {
+        recorder.recordDefaultStorageTime(defaultStorageTime);
+      }
+      applyStorageTimes();
+    }
+  }
+
+  /**
+   * Removes all storage rules, so that all edges use the default storage time.
+   */
+  public void clearStorageTimes() {
+    synchronized (writeLock) {
+      storageRules.clear();
+      TfRecorder recorder = this.recorder;
+      if (recorder != null) {
+        recorder.recordClearStorageTimes();
+      }
+      applyStorageTimes();
+    }
+  }
+
+  /**
+   * Sets the memory budget of all time caches together, in bytes (0 = unlimited). When inserts exceed
+   * the budget, the buffers of the least queried edges (and among those, the ones holding the oldest
+   * data) are halved, evicting their oldest transforms, until the budget is met. Static edges are never
+   * evicted. Setting a new budget lifts the limits caused by the previous one.
+   */
+  public void setMemoryBudget(long bytes) {
+    synchronized (writeLock) {
+      memoryBudget = Math.max(0, bytes);
+      unreachableMemoryUsage = -1;
+      unreachableBudgetLogged = false;
+      TfRecorder recorder = this.recorder;
+      if (recorder != null) {
+        recorder.recordMemoryBudget(memoryBudget);
+      }
+      for(Frame frame : frames.values()) {
+        for(TimeCache cache : frame.getTimeCaches()) {
+          cache.setCapacityLimit(0);
+        }
+      }
+      if (memoryBudget > 0 && memoryUsage > memoryBudget) {
+        enforceMemoryBudget();
+      }
+    }
+  }
+
+  /**
+   * Returns the memory budget of all time caches together, in bytes (0 = unlimited).
+   */
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Returns the approximate memory used by all time caches, in bytes. See getMetrics() for the
+   * memory used per edge.
+   */
+  public long getMemoryUsage() {
+    return memoryUsage;
+  }
+
+  /**
+   * Returns the storage time for the edge from the given parent to the given child frame, in nanoseconds.
+   * Caller must hold writeLock.
+   */
+  private long getStorageTime(String parentFrameID, String childFrameID) {
+    for(int i = storageRules.size() - 1; i >= 0; i--) {
+      StorageRule rule = storageRules.get(i);
+      if (matches(rule.parentPattern, parentFrameID) && matches(rule.childPattern, childFrameID)) {
+        return rule.storageTime;
+      }
+    }
+    return defaultStorageTime;
+  }
+
+  /**
+   * Sets the storage time of all edges according to the storage rules. Caller must hold writeLock.
+   */
+  private void applyStorageTimes() {
+    for(Frame frame : frames.values()) {
+      for(TimeCache cache : frame.getTimeCaches()) {
+        long storageTime = getStorageTime(cache.parentFrame.getFrameID(), frame.getFrameID());
+        if (storageTime != cache.getMaxStorageTime()) {
+          cache.setMaxStorageTime(storageTime);
+        }
+      }
+    }
+  }
+
+  /**
+   * Halves the buffers of the least queried edges until the memory usage is within the budget.
+   * Caller must hold writeLock.
+   */
+  private void enforceMemoryBudget() {
+    // a budget found unreachable stays so until edges are added or grow again (e.g., a static edge that
+    // became dynamic), so the edges are not scanned on every insert meanwhile
+    if (unreachableMemoryUsage >= 0 && memoryUsage <= unreachableMemoryUsage
+        && unreachableTopologyVersion == topologyVersion.get()) {
+      return;
+    }
+    unreachableMemoryUsage = -1;
+    while (memoryUsage > memoryBudget) {
+      TimeCache victim = null;
+      long victimOldest = 0;
+      for(Frame frame : frames.values()) {
+        for(TimeCache cache : frame.getTimeCaches()) {
+          if (cache.isStatic() || cache.getCapacity() <= TimeCache.MIN_CAPACITY_LIMIT) continue;
+          long oldest = cache.getOldestTimeStamp();
+          if (victim == null || cache.getQueryCount() < victim.getQueryCount()
+              || (cache.getQueryCount() == victim.getQueryCount() && oldest < victimOldest)) {
+            victim = cache;
+            victimOldest = oldest;
+          }
+        }
+      }
+      if (victim == null) {
+        // nothing left to evict
+        unreachableMemoryUsage = memoryUsage;
+        unreachableTopologyVersion = topologyVersion.get();
+        if (!unreachableBudgetLogged) {
+          unreachableBudgetLogged = true;
+          logger.warning("tf memory budget of " + memoryBudget + " bytes cannot be met: " + memoryUsage
+                         + " bytes are used with all dynamic edges at their smallest capacity");
+        }
+        break;
+      }
+
+      long memoryBefore = victim.getMemoryUsage();
+      victim.setCapacityLimit(victim.getCapacity() / 2);
+      memoryUsage += victim.getMemoryUsage() - memoryBefore;
+    }
+
+    // let the ranking follow recent use
+    for(Frame frame : frames.values()) {
+      for(TimeCache cache : frame.getTimeCaches()) {
+        cache.decayQueryCount();
+      }
+    }
+  }
+
+  /**
+   * Resolves the frame ID parts of a storage rule pattern.
+   */
+  private String resolvePattern(String pattern) {
+    return pattern.startsWith("*") ? pattern : resolve(tfPrefix, pattern);
+  }
+
+  /**
+   * Returns true if the given frame ID matches the given pattern, in which '*' matches any sequence of
+   * characters.
+   */
+  static boolean matches(String pattern, String frameID) {
+    int p = 0, f = 0, starP = -1, starF = 0;
+    while (f < frameID.length()) {
+      if (p < pattern.length() && pattern.charAt(p) == '*') {
+        starP = p++;
+        starF = f;
+      } else if (p < pattern.length() && pattern.charAt(p) == frameID.charAt(f)) {
+        p++;
+        f++;
+      } else if (starP >= 0) {
+        p = starP + 1;
+        f = ++starF;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+    return p == pattern.length();
+  }
+
+  /**
+   * Storage time for the edges between frames matching the given patterns.
+   */
+  private static class StorageRule {
+    final String parentPattern;
+    final String childPattern;
+    /** Storage time, in nanoseconds */
+    final long storageTime;
+
+    StorageRule(String parentPattern, String childPattern, long storageTime) {
+      this.parentPattern = parentPattern;
+      this.childPattern = childPattern;
+      this.storageTime = storageTime;
+    }
+  }
+
+  /* **********************************************************************
+   * *                            INGEST QUEUE                            *
+   * ********************************************************************** */
+
+  /**
+   * Enables or disables the ingest queue. With a capacity greater than 0, the subscriber only appends the
+   * received transforms to a bounded lock-free queue of (at least) that capacity, and a single tf worker
+   * thread drains the queue in batches, grouped by edge; transforms arriving while the queue is full are
+   * dropped (see getIngestDroppedCount). With 0 (the default), transforms are ingested in the subscriber
+   * callback. Replacing or removing a queue ingests the transforms still waiting in it first.
+   */
+  public void setIngestQueue(int capacity) {
+    synchronized (ingestLock) {
+      IngestWorker worker = ingestWorker;
+      if (worker != null) {
+        // new messages go to the new queue (or inline) while the old worker drains its queue
+        ingestWorker = null;
+        worker.shutdown();
+      }
+      if (capacity > 0) {
+        worker = new IngestWorker(new TfIngestQueue(capacity));
+        worker.thread.start();
+        ingestWorker = worker;
+      }
+    }
+  }
+
+  /**
+   * Returns the capacity of the ingest queue, or 0 if transforms are ingested in the subscriber callback.
+   */
+  public int getIngestQueueCapacity() {
+    IngestWorker worker = ingestWorker;
+    return (worker != null) ? worker.queue.getCapacity() : 0;
+  }
+
+  /**
+   * Returns the number of transforms waiting in the ingest queue.
+   */
+  public int getIngestQueueDepth() {
+    IngestWorker worker = ingestWorker;
+    return (worker != null) ? worker.queue.getDepth() : 0;
+  }
+
+  /**
+   * Returns the highest number of transforms that were waiting in the ingest queue at the same time.
+   */
+  public int getIngestQueueMaxDepth() {
+    IngestWorker worker = ingestWorker;
+    return (worker != null) ? worker.queue.getMaxDepth() : 0;
+  }
+
+  /**
+   * Returns the number of transforms dropped because the ingest queue was full.
+   */
+  public long getIngestDroppedCount() {
+    IngestWorker worker = ingestWorker;
+    return (worker != null) ? worker.queue.getDroppedCount() : 0;
+  }
+
+  /**
+   * Appends the given transforms to the queue of the given ingest worker and wakes it up.
+   */
+  private void enqueueTransforms(IngestWorker worker, List<TransformStamped> transforms) {
+    for(int i = 0, n = transforms.size(); i < n; i++) {
+      worker.queue.offer(transforms.get(i));
+    }
+    LockSupport.unpark(worker.thread);
+    if (ingestWorker != worker) {
+      // the worker was shut down meanwhile and may have missed these transforms: ingest them here
+      IngestUpdates updates = new IngestUpdates();
+      while (worker.ingestBatch(updates) > 0) {}
+    }
+  }
+
+  /* **********************************************************************
+   * *                             RECORDING                              *
    * ********************************************************************** */
 
   /**
-   * Converts the given TransformStamped message to the TransformStorage datastructure
+   * Sets the recorder to which every transform passed to setTransform is appended (before it is
+   * inserted, so that replaying the recording reproduces rejected data as well); null stops recording.
+   * Calls of setStatic, the storage time methods and setMemoryBudget are recorded as well; settings made
+   * before the recorder was set are not.
+   * The recorder only encodes the transforms under the write lock; its own thread writes them to disk.
+   * The recorder is not closed by the listener.
    */
-  protected TransformStorage transformStampedMsgToTF(TransformStamped msg) {
-    Vector3 tMsg = msg.getTransform().getTranslation();
-    Quaternion rMsg = msg.getTransform().getRotation();
+  public void setRecorder(TfRecorder recorder) {
+    synchronized (writeLock) {
+      this.recorder = recorder;
+    }
+  }
+
+  /**
+   * Returns the current recorder, or null if not recording.
+   */
+  public TfRecorder getRecorder() {
+    return recorder;
+  }
 
-    // add frames to map
-    Frame childFrame = lookupOrInsertFrame(msg.getChildFrameId());
-    Frame parentFrame = lookupOrInsertFrame(msg.getHeader().getFrameId());
+  /* **********************************************************************
+   * *                              METRICS                               *
+   * ********************************************************************** */
 
-    return new TransformStorage(new Vector3d(tMsg.getX(), tMsg.getY(), tMsg.getZ()),
-                                new Quat4d(rMsg.getX(), rMsg.getY(), rMsg.getZ(), rMsg.getW()),
-                                msg.getHeader().getStamp().totalNsecs(),
-                                parentFrame, childFrame);
+  /**
+   * Returns a snapshot of the insert metrics of all edges and of the lookup metrics. Taking a snapshot
+   * does not block inserts or lookups.
+   */
+  public TfMetrics.Snapshot getMetrics() {
+    ArrayList<TimeCache> edges = new ArrayList<TimeCache>();
+    for(Frame frame : frames.values()) {
+      edges.addAll(frame.getTimeCaches());
+    }
+    return metrics.snapshot(edges, memoryBudget);
   }
 
+  /**
+   * Enables or disables recording of metrics (enabled by default).
+   */
+  public void setMetricsEnabled(boolean enabled) {
+    metricsEnabled = enabled;
+  }
+
+  /**
+   * Returns true if metrics are recorded.
+   */
+  public boolean isMetricsEnabled() {
+    return metricsEnabled;
+  }
+
+  /* **********************************************************************
+   * *                          HELPER METHODS                            *
+   * ********************************************************************** */
+
   /**
    * Converts the given TransformStorage datastructure to a TransformStamped message
    */
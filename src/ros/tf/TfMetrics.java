@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics of a TfListener: counters and histograms per edge (inserts, rejected old data, buffer
+ * depth, memory use, publish-to-receive delay) and per lookup (search expansions, path length, latency, failures).
+ * 
+ * Recording only uses plain or atomic field updates, so the insert and lookup paths never block on
+ * metrics. Lookup metrics are kept per thread ({@link LookupStats}), so that concurrent lookups do not
+ * write to shared cache lines; a snapshot sums them up. Readers take a {@link Snapshot} via {@link TfListener#getMetrics()}; a snapshot is not an
+ * atomic cut across all counters, but every individual value in it is consistent.
+ */
+public class TfMetrics {
+    
+    /**
+     * Reasons why a lookup fails.
+     */
+    public enum FailureReason {
+        /** The source or target frame has never been seen */
+        UNKNOWN_FRAME,
+        /** The source and target frame are not connected */
+        NOT_CONNECTED,
+        /** An edge on the path holds no data */
+        NO_DATA
+    }
+    
+    /** Number of buckets of a histogram; bucket i holds values in [2^(i-1), 2^i) */
+    public static final int HISTOGRAM_BUCKETS = 64;
+    
+    /** Weight of a new sample in the exponential moving average of the insert interval */
+    private static final double RATE_SMOOTHING = 0.1;
+    
+    /**
+     * Lock-free histogram with power-of-two buckets.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        
+        /**
+         * Records the given value; negative values are recorded as 0.
+         */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            // saturate instead of overflowing, e.g. for delays of data with bogus time stamps
+            long oldSum;
+            do {
+                oldSum = sum.get();
+            } while (!sum.compareAndSet(oldSum, (oldSum > Long.MAX_VALUE - value) ? Long.MAX_VALUE : oldSum + value));
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+        
+        /**
+         * Returns the index of the bucket holding value.
+         */
+        static int bucket(long value) {
+            return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+        
+        /**
+         * Returns a copy of the current state of this histogram.
+         */
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            for(int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(counts, count.get(), sum.get(), max.get());
+        }
+    }
+    
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static class HistogramSnapshot {
+        /** Number of recorded values per bucket; bucket i holds values in [2^(i-1), 2^i) */
+        public final long[] buckets;
+        /** Number of recorded values */
+        public final long count;
+        /** Sum of the recorded values */
+        public final long sum;
+        /** Largest recorded value */
+        public final long max;
+        
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+        
+        /**
+         * Returns the mean of the recorded values, or 0 if there are none.
+         */
+        public double getMean() {
+            return (count == 0) ? 0 : (double) sum / count;
+        }
+        
+        /**
+         * Returns an upper bound of the given quantile (0..1) of the recorded values, accurate to a factor
+         * of two, or 0 if there are none.
+         */
+        public long getQuantile(double q) {
+            long total = 0;
+            for(long c : buckets) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return (i == 0) ? 0 : Math.min(max, (i >= 63) ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+        
+        @Override
+        public String toString() {
+            return "[n=" + count + ", mean=" + getMean() + ", p50<=" + getQuantile(0.5) + ", p99<="
+                + getQuantile(0.99) + ", max=" + max + "]";
+        }
+    }
+    
+    /**
+     * Metrics of a single edge, kept by its TimeCache. Counters are only updated by the single tf writer,
+     * so plain volatile fields suffice.
+     */
+    public static class EdgeMetrics {
+        private volatile long insertCount;
+        private volatile long rejectedCount;
+        private volatile long lastInsertTime;
+        private volatile double meanInsertInterval;
+        /** Publish-to-receive delay, in nanoseconds */
+        private final Histogram delay = new Histogram();
+        
+        /**
+         * Records an insert of data with the given stamp (nanoseconds), received at receiveTime (nanoseconds
+         * since the epoch); rejected is true if the data was dropped for being too old.
+         */
+        void recordInsert(long stamp, long receiveTime, boolean rejected) {
+            long now = System.nanoTime();
+            if (insertCount > 0) {
+                double interval = now - lastInsertTime;
+                meanInsertInterval = (meanInsertInterval == 0) ? interval
+                    : meanInsertInterval + RATE_SMOOTHING * (interval - meanInsertInterval);
+            }
+            lastInsertTime = now;
+            insertCount++;
+            if (rejected) rejectedCount++;
+            delay.record(receiveTime - stamp);
+        }
+    }
+    
+    /**
+     * Histogram that is only updated by a single thread, but may be read by any thread. Updates are plain
+     * read-modify-write sequences published with lazySet, so recording needs no atomic instructions.
+     */
+    static class LocalHistogram {
+        private static final int COUNT = HISTOGRAM_BUCKETS;
+        private static final int SUM = HISTOGRAM_BUCKETS + 1;
+        private static final int MAX = HISTOGRAM_BUCKETS + 2;
+        /** Buckets, followed by count, sum and max */
+        private final AtomicLongArray values = new AtomicLongArray(HISTOGRAM_BUCKETS + 3);
+        
+        /**
+         * Records the given value; negative values are recorded as 0. Must only be called by the owner thread.
+         */
+        void record(long value) {
+            if (value < 0) value = 0;
+            int bucket = Histogram.bucket(value);
+            values.lazySet(bucket, values.get(bucket) + 1);
+            values.lazySet(COUNT, values.get(COUNT) + 1);
+            long sum = values.get(SUM);
+            values.lazySet(SUM, (sum > Long.MAX_VALUE - value) ? Long.MAX_VALUE : sum + value);
+            if (value > values.get(MAX)) values.lazySet(MAX, value);
+        }
+        
+        /**
+         * Adds the current state of this histogram to totals, which has room for the buckets, count, sum and max.
+         */
+        void addTo(long[] totals) {
+            for(int i = 0; i < MAX; i++) {
+                totals[i] += values.get(i);
+            }
+            if (totals[SUM] < 0) totals[SUM] = Long.MAX_VALUE;
+            totals[MAX] = Math.max(totals[MAX], values.get(MAX));
+        }
+        
+        /**
+         * Returns a snapshot of the sum of the given totals, as filled by addTo.
+         */
+        static HistogramSnapshot snapshot(long[] totals) {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            System.arraycopy(totals, 0, counts, 0, HISTOGRAM_BUCKETS);
+            return new HistogramSnapshot(counts, totals[COUNT], totals[SUM], totals[MAX]);
+        }
+    }
+    
+    /**
+     * Lookup metrics of a single thread. Only the owner thread records into it, so recording never
+     * contends with lookups on other threads.
+     */
+    static class LookupStats {
+        /** Number of lookups, followed by the number of failed lookups per failure reason */
+        private final AtomicLongArray counts = new AtomicLongArray(1 + FailureReason.values().length);
+        /** Search expansions per uncached lookup */
+        private final LocalHistogram expansions = new LocalHistogram();
+        /** Number of edges on the path per successful lookup */
+        private final LocalHistogram pathLength = new LocalHistogram();
+        /** Lookup latency, in nanoseconds */
+        private final LocalHistogram latency = new LocalHistogram();
+        
+        /**
+         * Records a lookup that took the given time, with the given number of search expansions (-1 if the
+         * path was cached) and path length; reason is null if the lookup succeeded. Must only be called by
+         * the owner thread.
+         */
+        void recordLookup(long latencyNanos, int expansionCount, int pathEdges, FailureReason reason) {
+            counts.lazySet(0, counts.get(0) + 1);
+            latency.record(latencyNanos);
+            if (expansionCount >= 0) expansions.record(expansionCount);
+            if (reason == null) {
+                pathLength.record(pathEdges);
+            } else {
+                int i = 1 + reason.ordinal();
+                counts.lazySet(i, counts.get(i) + 1);
+            }
+        }
+    }
+    
+    /** Lookup metrics of all threads that have done lookups; entries of terminated threads are kept */
+    private final CopyOnWriteArrayList<LookupStats> lookupStats = new CopyOnWriteArrayList<LookupStats>();
+    
+    /**
+     * Returns new lookup metrics for the calling thread, included in all later snapshots.
+     */
+    LookupStats newLookupStats() {
+        LookupStats stats = new LookupStats();
+        lookupStats.add(stats);
+        return stats;
+    }
+    
+    /**
+     * Returns a snapshot of the lookup metrics and of the metrics of the given edges.
+     */
+    Snapshot snapshot(List<TimeCache> edges, long memoryBudget) {
+        ArrayList<EdgeSnapshot> edgeSnapshots = new ArrayList<EdgeSnapshot>(edges.size());
+        long memoryUsage = 0;
+        for(TimeCache cache : edges) {
+            EdgeSnapshot edge = new EdgeSnapshot(cache);
+            edgeSnapshots.add(edge);
+            memoryUsage += edge.memoryUsage;
+        }
+        long lookupCount = 0;
+        long[] failureCounts = new long[FailureReason.values().length];
+        long[] expansions = new long[HISTOGRAM_BUCKETS + 3];
+        long[] pathLength = new long[HISTOGRAM_BUCKETS + 3];
+        long[] latency = new long[HISTOGRAM_BUCKETS + 3];
+        for(LookupStats stats : lookupStats) {
+            lookupCount += stats.counts.get(0);
+            for(int i = 0; i < failureCounts.length; i++) {
+                failureCounts[i] += stats.counts.get(1 + i);
+            }
+            stats.expansions.addTo(expansions);
+            stats.pathLength.addTo(pathLength);
+            stats.latency.addTo(latency);
+        }
+        return new Snapshot(System.currentTimeMillis(), Collections.unmodifiableList(edgeSnapshots),
+                            memoryUsage, memoryBudget, lookupCount, failureCounts, LocalHistogram.snapshot(expansions),
+                            LocalHistogram.snapshot(pathLength), LocalHistogram.snapshot(latency));
+    }
+    
+    /**
+     * Metrics of a single edge at the time of the snapshot.
+     */
+    public static class EdgeSnapshot {
+        /** ID of the parent frame */
+        public final String parentFrameID;
+        /** ID of the child frame */
+        public final String childFrameID;
+        /** True if the edge is static */
+        public final boolean isStatic;
+        /** Number of inserts, including rejected ones */
+        public final long insertCount;
+        /** Number of inserts rejected because the data was older than the buffer */
+        public final long rejectedCount;
+        /** Smoothed insert rate, in Hz; 0 if unknown */
+        public final double insertRate;
+        /** Number of transforms in the buffer */
+        public final int bufferDepth;
+        /** Publish-to-receive delay, in nanoseconds */
+        public final HistogramSnapshot delay;
+        /** Storage time (horizon) of the edge, in nanoseconds */
+        public final long storageTime;
+        /** Approximate memory used by the buffer, in bytes */
+        public final long memoryUsage;
+        /** Maximum number of transforms imposed by the memory budget (0 = unlimited) */
+        public final int capacityLimit;
+        /** Number of transforms evicted because of the memory budget */
+        public final long evictedCount;
+        /** Approximate number of recent lookups of the edge */
+        public final int queryCount;
+        
+        EdgeSnapshot(TimeCache cache) {
+            EdgeMetrics metrics = cache.metrics;
+            parentFrameID = cache.parentFrame.getFrameID();
+            childFrameID = cache.childFrame.getFrameID();
+            isStatic = cache.isStatic();
+            insertCount = metrics.insertCount;
+            rejectedCount = metrics.rejectedCount;
+            double interval = metrics.meanInsertInterval;
+            insertRate = (interval > 0) ? 1e9 / interval : 0;
+            bufferDepth = cache.size();
+            delay = metrics.delay.snapshot();
+            storageTime = cache.getMaxStorageTime();
+            memoryUsage = cache.getMemoryUsage();
+            capacityLimit = cache.getCapacityLimit();
+            evictedCount = cache.getEvictedCount();
+            queryCount = cache.getQueryCount();
+        }
+        
+        @Override
+        public String toString() {
+            return parentFrameID + " -> " + childFrameID + (isStatic ? " (static)" : "") + ": inserts=" + insertCount
+                + ", rejected=" + rejectedCount + ", rate=" + insertRate + "Hz, depth=" + bufferDepth + ", delay=" + delay
+                + ", storage=" + storageTime / 1e9 + "s, memory=" + memoryUsage + "B, evicted=" + evictedCount;
+        }
+    }
+    
+    /**
+     * Copy of the metrics of a TfListener.
+     */
+    public static class Snapshot {
+        /** Time the snapshot was taken, in milliseconds since the epoch */
+        public final long time;
+        /** Metrics per edge */
+        public final List<EdgeSnapshot> edges;
+        /** Approximate memory used by all edges, in bytes */
+        public final long memoryUsage;
+        /** Memory budget of all edges together, in bytes (0 = unlimited) */
+        public final long memoryBudget;
+        /** Number of lookups */
+        public final long lookupCount;
+        /** Search expansions per lookup that searched the graph */
+        public final HistogramSnapshot expansions;
+        /** Number of edges on the path per successful lookup */
+        public final HistogramSnapshot pathLength;
+        /** Lookup latency, in nanoseconds */
+        public final HistogramSnapshot latency;
+        private final long[] failureCounts;
+        
+        Snapshot(long time, List<EdgeSnapshot> edges, long memoryUsage, long memoryBudget, long lookupCount,
+                 long[] failureCounts, HistogramSnapshot expansions, HistogramSnapshot pathLength,
+                 HistogramSnapshot latency) {
+            this.time = time;
+            this.edges = edges;
+            this.memoryUsage = memoryUsage;
+            this.memoryBudget = memoryBudget;
+            this.lookupCount = lookupCount;
+            this.failureCounts = failureCounts;
+            this.expansions = expansions;
+            this.pathLength = pathLength;
+            this.latency = latency;
+        }
+        
+        /**
+         * Returns the number of lookups that failed for the given reason.
+         */
+        public long getFailureCount(FailureReason reason) {
+            return failureCounts[reason.ordinal()];
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("memory=").append(memoryUsage).append("B, budget=").append(memoryBudget).append('B');
+            sb.append(", lookups=").append(lookupCount);
+            for(FailureReason reason : FailureReason.values()) {
+                sb.append(", ").append(reason).append('=').append(getFailureCount(reason));
+            }
+            sb.append("\n  latency=").append(latency);
+            sb.append("\n  expansions=").append(expansions);
+            sb.append("\n  pathLength=").append(pathLength);
+            for(EdgeSnapshot edge : edges) {
+                sb.append("\n  ").append(edge);
+            }
+            return sb.toString();
+        }
+    }
+    
+}
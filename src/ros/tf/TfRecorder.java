@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Appends every transform ingested by a TfListener to a compact binary log, which can be replayed with
+ * {@link TfReplay}; see {@link TfListener#setRecorder(TfRecorder)}. The listener also records the calls
+ * that change how transforms are buffered (setStatic, the storage times and the memory budget), so that
+ * replaying a log into a fresh listener reproduces its buffers. Static detection settings of individual
+ * time caches are not recorded.
+ * 
+ * The log starts with a header (MAGIC, VERSION) and then holds records written big-endian. Each record
+ * starts with its type (byte); all but frame records then hold the receive time since the start of the
+ * recording in nanoseconds (long):
+ * <ul>
+ * <li>FRAME_RECORD: frame handle (int), frame ID (UTF), written before the first record that refers to the
+ *     frame. Handles are numbered 0, 1, ... in the order of their frame records;</li>
+ * <li>TRANSFORM_RECORD: time stamp in nanoseconds (long), child frame handle (int), parent frame handle
+ *     (int), static flag (byte), translation and rotation (7 doubles: tx, ty, tz, qx, qy, qz, qw);</li>
+ * <li>STATIC_RECORD: child frame handle (int), parent frame handle (int), static flag (byte);</li>
+ * <li>STORAGE_TIME_RECORD: storage time in nanoseconds (long), parent pattern (UTF), child pattern (UTF);</li>
+ * <li>DEFAULT_STORAGE_TIME_RECORD: storage time in nanoseconds (long);</li>
+ * <li>CLEAR_STORAGE_TIMES_RECORD: no data;</li>
+ * <li>MEMORY_BUDGET_RECORD: memory budget in bytes (long);</li>
+ * <li>DROPPED_RECORD: number of records dropped at this point of the log (long).</li>
+ * </ul>
+ * 
+ * Records are encoded into memory chunks on the recording thread (the listener records under its write
+ * lock), and the chunks are written to the file by a thread of the recorder, so that recording never
+ * waits for the disk. If more than MAX_PENDING_CHUNKS full chunks are waiting to be written, further
+ * records are dropped and counted (see getDroppedCount()); the next record that fits is preceded by a
+ * DROPPED_RECORD, so a replay reports that it is incomplete. A write error stops the recording (see
+ * getError()) instead of disturbing the listener.
+ */
+public class TfRecorder {
+    
+    /** First int of a tf log */
+    public static final int MAGIC = 0x54464c47; // "TFLG"
+    /** Version of the log format */
+    public static final int VERSION = 2;
+    /** Type of a frame record */
+    public static final byte FRAME_RECORD = 1;
+    /** Type of a transform record */
+    public static final byte TRANSFORM_RECORD = 2;
+    /** Type of a record of TfListener.setStatic */
+    public static final byte STATIC_RECORD = 3;
+    /** Type of a record of TfListener.setStorageTime */
+    public static final byte STORAGE_TIME_RECORD = 4;
+    /** Type of a record of TfListener.setDefaultStorageTime */
+    public static final byte DEFAULT_STORAGE_TIME_RECORD = 5;
+    /** Type of a record of TfListener.clearStorageTimes */
+    public static final byte CLEAR_STORAGE_TIMES_RECORD = 6;
+    /** Type of a record of TfListener.setMemoryBudget */
+    public static final byte MEMORY_BUDGET_RECORD = 7;
+    /** Type of a record of dropped records */
+    public static final byte DROPPED_RECORD = 8;
+    /** Size of the type and receive time that start all records but frame records, in bytes */
+    public static final int RECORD_HEADER_SIZE = 1 + 8;
+    /** Size of a transform record, in bytes */
+    public static final int TRANSFORM_RECORD_SIZE = RECORD_HEADER_SIZE + 8 + 4 + 4 + 1 + 7 * 8;
+    /** Size of a static record, in bytes */
+    public static final int STATIC_RECORD_SIZE = RECORD_HEADER_SIZE + 4 + 4 + 1;
+    /** Size of records holding a single long (default storage time, memory budget, dropped), in bytes */
+    public static final int LONG_RECORD_SIZE = RECORD_HEADER_SIZE + 8;
+    /** Size of a chunk, in bytes */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** Maximum number of full chunks waiting for the writer thread before records are dropped */
+    public static final int MAX_PENDING_CHUNKS = 64;
+    
+    /** Marks the end of the chunks for the writer thread */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    
+    /** File the log is written to */
+    private final File file;
+    private final FileOutputStream out;
+    /** Time the recording started (System.nanoTime) */
+    private final long startTime;
+    /** Chunk that records are encoded into */
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    /** Chunks waiting to be written, in order */
+    private final LinkedBlockingQueue<ByteBuffer> pendingChunks = new LinkedBlockingQueue<ByteBuffer>();
+    /** Written chunks, for reuse */
+    private final ConcurrentLinkedQueue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+    /** Writes the pending chunks to the file */
+    private final Thread writer;
+    /** Log handle + 1 of the frames for which a frame record has been written, by frame handle; 0 if none */
+    private int[] logHandles = new int[64];
+    /** Number of frame records written */
+    private int frameCount;
+    /** Number of transform records written */
+    private long recordCount;
+    /** Number of records dropped because the writer thread fell behind */
+    private long droppedCount;
+    /** Number of dropped records not yet noted by a DROPPED_RECORD */
+    private long unloggedDropCount;
+    /** Number of chunks handed to the writer thread; guarded by this */
+    private long queuedChunkCount;
+    /** Number of chunks processed by the writer thread; guarded by writtenLock */
+    private long writtenChunkCount;
+    private final Object writtenLock = new Object();
+    /** First write error, if any; recording stops once set */
+    private volatile IOException error;
+    private boolean closed;
+    
+    /**
+     * Creates a recorder that writes to the given file, replacing its contents.
+     */
+    public TfRecorder(File file) throws IOException {
+        this.file = file;
+        this.out = new FileOutputStream(file);
+        this.startTime = System.nanoTime();
+        chunk.putInt(MAGIC);
+        chunk.putInt(VERSION);
+        writer = new Thread("TfRecorder writer") {
+            @Override
+            public void run() {
+                writeChunks();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Appends the transform given by its components to the log. Called by the listener for every ingested
+     * transform; only encodes the record into memory.
+     */
+    synchronized void record(Frame parentFrame, Frame childFrame, long timeStamp,
+                             double tx, double ty, double tz, double qx, double qy, double qz, double qw,
+                             boolean isStatic) {
+        if (!startRecord(TRANSFORM_RECORD, TRANSFORM_RECORD_SIZE, childFrame, parentFrame)) return;
+        ByteBuffer chunk = this.chunk;
+        chunk.putLong(timeStamp);
+        chunk.putInt(logHandle(childFrame));
+        chunk.putInt(logHandle(parentFrame));
+        chunk.put((byte) (isStatic ? 1 : 0));
+        chunk.putDouble(tx);
+        chunk.putDouble(ty);
+        chunk.putDouble(tz);
+        chunk.putDouble(qx);
+        chunk.putDouble(qy);
+        chunk.putDouble(qz);
+        chunk.putDouble(qw);
+        recordCount++;
+    }
+    
+    /**
+     * Appends a call of TfListener.setStatic that found its edge to the log.
+     */
+    synchronized void recordStatic(Frame parentFrame, Frame childFrame, boolean isStatic) {
+        if (!startRecord(STATIC_RECORD, STATIC_RECORD_SIZE, childFrame, parentFrame)) return;
+        chunk.putInt(logHandle(childFrame));
+        chunk.putInt(logHandle(parentFrame));
+        chunk.put((byte) (isStatic ? 1 : 0));
+    }
+    
+    /**
+     * Appends a call of TfListener.setStorageTime, with resolved patterns, to the log.
+     */
+    synchronized void recordStorageTime(String parentPattern, String childPattern, long storageTime) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream patterns = new DataOutputStream(bytes);
+            patterns.writeUTF(parentPattern);
+            patterns.writeUTF(childPattern);
+        } catch (IOException e) {
+            // a pattern is too long for the UTF encoding
+            if (!closed && error == null) drop();
+            return;
+        }
+        if (!startRecord(STORAGE_TIME_RECORD, LONG_RECORD_SIZE + bytes.size(), null, null)) return;
+        chunk.putLong(storageTime);
+        chunk.put(bytes.toByteArray());
+    }
+    
+    /**
+     * Appends a call of TfListener.setDefaultStorageTime to the log.
+     */
+    synchronized void recordDefaultStorageTime(long storageTime) {
+        if (!startRecord(DEFAULT_STORAGE_TIME_RECORD, LONG_RECORD_SIZE, null, null)) return;
+        chunk.putLong(storageTime);
+    }
+    
+    /**
+     * Appends a call of TfListener.clearStorageTimes to the log.
+     */
+    synchronized void recordClearStorageTimes() {
+        startRecord(CLEAR_STORAGE_TIMES_RECORD, RECORD_HEADER_SIZE, null, null);
+    }
+    
+    /**
+     * Appends a call of TfListener.setMemoryBudget to the log.
+     */
+    synchronized void recordMemoryBudget(long bytes) {
+        if (!startRecord(MEMORY_BUDGET_RECORD, LONG_RECORD_SIZE, null, null)) return;
+        chunk.putLong(bytes);
+    }
+    
+    /**
+     * Starts a record of the given type and total size: writes the frame records of the given frames (if
+     * not null and not written yet) and the type and receive time of the record, and makes sure that the
+     * chunk has room for the rest of it. Returns false if the record is not written, because the recorder
+     * is closed or failed, or because the record was dropped. Caller must hold the lock of this recorder.
+     */
+    private boolean startRecord(byte type, int size, Frame frame1, Frame frame2) {
+        if (closed || error != null) return false;
+        long receiveTime = System.nanoTime() - startTime;
+        if (!writeDropped(receiveTime, false) || (frame1 != null && !writeFrame(frame1))
+            || (frame2 != null && !writeFrame(frame2)) || !reserve(size)) {
+            drop();
+            return false;
+        }
+        chunk.put(type);
+        chunk.putLong(receiveTime);
+        return true;
+    }
+    
+    /**
+     * Counts a dropped record. Caller must hold the lock of this recorder.
+     */
+    private void drop() {
+        droppedCount++;
+        unloggedDropCount++;
+    }
+    
+    /**
+     * Writes a DROPPED_RECORD if records were dropped since the last one. If force is set, the record is
+     * written even if too many chunks are pending. Returns false if the record had to be dropped. Caller
+     * must hold the lock of this recorder.
+     */
+    private boolean writeDropped(long receiveTime, boolean force) {
+        if (unloggedDropCount == 0) return true;
+        if (force) {
+            if (chunk.remaining() < LONG_RECORD_SIZE) queueChunk();
+        } else if (!reserve(LONG_RECORD_SIZE)) {
+            return false;
+        }
+        chunk.put(DROPPED_RECORD);
+        chunk.putLong(receiveTime);
+        chunk.putLong(unloggedDropCount);
+        unloggedDropCount = 0;
+        return true;
+    }
+    
+    /**
+     * Writes a frame record for the given frame if it has not been written yet. Returns false if the
+     * record had to be dropped. Caller must hold the lock of this recorder.
+     */
+    private boolean writeFrame(Frame frame) {
+        int handle = frame.getHandle();
+        if (handle >= logHandles.length) {
+            logHandles = Arrays.copyOf(logHandles, Math.max(handle + 1, logHandles.length * 2));
+        }
+        if (logHandles[handle] != 0) return true;
+        
+        // frame records are rare, so they are encoded with a data stream for its UTF encoding
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(FRAME_RECORD);
+            record.writeInt(frameCount);
+            record.writeUTF(frame.getFrameID());
+        } catch (IOException e) {
+            // the frame ID is too long for the UTF encoding
+            return false;
+        }
+        if (!reserve(bytes.size())) return false;
+        chunk.put(bytes.toByteArray());
+        logHandles[handle] = ++frameCount;
+        return true;
+    }
+    
+    /**
+     * Returns the handle of the given frame in the log; its frame record must have been written.
+     */
+    private int logHandle(Frame frame) {
+        return logHandles[frame.getHandle()] - 1;
+    }
+    
+    /**
+     * Makes sure that the chunk has room for the given number of bytes, handing it to the writer thread
+     * if it is full. Returns false if too many chunks are pending. Caller must hold the lock of this recorder.
+     */
+    private boolean reserve(int size) {
+        if (chunk.remaining() >= size) return true;
+        if (pendingChunks.size() >= MAX_PENDING_CHUNKS) return false;
+        queueChunk();
+        if (chunk.remaining() < size) chunk = ByteBuffer.allocate(size);
+        return true;
+    }
+    
+    /**
+     * Hands the current chunk to the writer thread and starts a new one. Caller must hold the lock
+     * of this recorder.
+     */
+    private void queueChunk() {
+        chunk.flip();
+        pendingChunks.add(chunk);
+        queuedChunkCount++;
+        ByteBuffer next = freeChunks.poll();
+        chunk = (next != null) ? next : ByteBuffer.allocate(CHUNK_SIZE);
+    }
+    
+    /**
+     * Main loop of the writer thread: writes the pending chunks to the file until END is taken.
+     */
+    private void writeChunks() {
+        while (true) {
+            ByteBuffer next;
+            try {
+                next = pendingChunks.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (next == END) return;
+            if (error == null) {
+                try {
+                    out.write(next.array(), 0, next.limit());
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            next.clear();
+            if (next.capacity() == CHUNK_SIZE) freeChunks.add(next);
+            synchronized (writtenLock) {
+                writtenChunkCount++;
+                writtenLock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Writes all recorded records to the file, waiting for the writer thread.
+     */
+    public void flush() throws IOException {
+        long target;
+        synchronized (this) {
+            if (error != null) throw error;
+            if (closed) return;
+            writeDropped(System.nanoTime() - startTime, true);
+            if (chunk.position() > 0) queueChunk();
+            target = queuedChunkCount;
+        }
+        waitForChunks(target);
+        if (error != null) throw error;
+    }
+    
+    /**
+     * Waits until the writer thread has processed the given number of chunks.
+     */
+    private void waitForChunks(long count) throws IOException {
+        synchronized (writtenLock) {
+            while (writtenChunkCount < count) {
+                try {
+                    writtenLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing " + file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Flushes and closes the log. Transforms recorded afterwards are ignored.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            writeDropped(System.nanoTime() - startTime, true);
+            if (chunk.position() > 0) queueChunk();
+            pendingChunks.add(END);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        out.close();
+        if (error != null) throw error;
+    }
+    
+    /**
+     * Returns the file the log is written to.
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Returns the number of transforms recorded so far.
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+     * Returns the number of records that were dropped because the file could not be written fast enough.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+    
+    /**
+     * Returns the write error that stopped the recording, or null if there was none.
+     */
+    public IOException getError() {
+        return error;
+    }
+    
+}
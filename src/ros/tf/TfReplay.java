@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.ros.message.Duration;
+
+/**
+ * Replays a tf log written by {@link TfRecorder} into a TfListener. The log is memory-mapped and decoded
+ * in place. Transforms and recorded settings are fed to the listener in recorded order, paced by their
+ * recorded receive times: at real time, scaled by a speed factor, or as fast as possible. The sequence of
+ * calls does not depend on the pace, so replaying a complete log (see {@link Result#isComplete()}) into a
+ * fresh listener always gives the same buffer contents.
+ * 
+ * Logs are checked while they are replayed: the replay stops at the first record that is truncated or
+ * refers to a frame that has no frame record before it.
+ */
+public class TfReplay {
+    
+    /** Speed factor for replaying as fast as possible */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    
+    private final MappedByteBuffer buffer;
+    /** Position of the first record */
+    private final int dataStart;
+    
+    /**
+     * Maps the given log file. Throws an IOException if it is not a tf log of a supported version.
+     */
+    public TfReplay(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.remaining() < 8 || buffer.getInt(0) != TfRecorder.MAGIC) {
+            throw new IOException("Not a tf log: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != TfRecorder.VERSION) {
+            throw new IOException("Unsupported tf log version " + version + ": " + file);
+        }
+        dataStart = 8;
+    }
+    
+    /**
+     * Outcome of a replay.
+     */
+    public static class Result {
+        /** Number of transforms fed to the listener */
+        public final long transformCount;
+        /** Number of records that the recorder dropped, because it could not write them fast enough */
+        public final long droppedCount;
+        /** True if the end of the log was reached */
+        public final boolean endReached;
+        
+        Result(long transformCount, long droppedCount, boolean endReached) {
+            this.transformCount = transformCount;
+            this.droppedCount = droppedCount;
+            this.endReached = endReached;
+        }
+        
+        /**
+         * Returns true if the whole log was replayed and the recorder dropped no records, so that the
+         * listener received every recorded call.
+         */
+        public boolean isComplete() {
+            return endReached && droppedCount == 0;
+        }
+        
+        @Override
+        public String toString() {
+            return "[transforms=" + transformCount + ", dropped=" + droppedCount + ", endReached=" + endReached + "]";
+        }
+    }
+    
+    /**
+     * Feeds all transforms and settings of the log to the given listener, from the calling thread. With
+     * speed 1 they are fed at the pace they were recorded, with speed 2 twice as fast, and with speed
+     * AS_FAST_AS_POSSIBLE (or any speed <= 0) without waiting. The replay stops early if the thread is
+     * interrupted, or at a truncated or corrupt record (e.g., of a log that was still being written).
+     */
+    public Result replay(TfListener listener, double speed) {
+        // only absolute reads are used, so a log can be replayed by multiple threads at once
+        MappedByteBuffer view = buffer;
+        int position = dataStart;
+        int limit = view.limit();
+        Frame[] frames = new Frame[64];
+        int frameCount = 0;
+        RigidTransform transform = new RigidTransform();
+        long startTime = System.nanoTime();
+        long count = 0;
+        long droppedCount = 0;
+        
+        while (position < limit) {
+            byte type = view.get(position);
+            int available = limit - position;
+            if (type == TfRecorder.FRAME_RECORD) {
+                if (available < 7) break;
+                int handle = view.getInt(position + 1);
+                int length = view.getShort(position + 5) & 0xffff;
+                if (handle != frameCount || length == 0 || available < 7 + length) break;
+                if (handle >= frames.length) {
+                    frames = Arrays.copyOf(frames, frames.length * 2);
+                }
+                frames[handle] = listener.registerFrame(decodeUTF(view, position + 7, length));
+                frameCount++;
+                position += 7 + length;
+                continue;
+            }
+            
+            // all other records start with their receive time
+            if (available < TfRecorder.RECORD_HEADER_SIZE) break;
+            long receiveTime = view.getLong(position + 1);
+            int data = position + TfRecorder.RECORD_HEADER_SIZE;
+            if (type == TfRecorder.TRANSFORM_RECORD) {
+                if (available < TfRecorder.TRANSFORM_RECORD_SIZE) break;
+                long stamp = view.getLong(data);
+                int childHandle = view.getInt(data + 8);
+                int parentHandle = view.getInt(data + 12);
+                if (childHandle < 0 || childHandle >= frameCount || parentHandle < 0 || parentHandle >= frameCount) break;
+                boolean isStatic = view.get(data + 16) != 0;
+                int v = data + 17;
+                transform.tx = view.getDouble(v);
+                transform.ty = view.getDouble(v + 8);
+                transform.tz = view.getDouble(v + 16);
+                transform.qx = view.getDouble(v + 24);
+                transform.qy = view.getDouble(v + 32);
+                transform.qz = view.getDouble(v + 40);
+                transform.qw = view.getDouble(v + 48);
+                
+                if (speed > 0 && !waitUntil(startTime + (long) (receiveTime / speed))) break;
+                listener.setTransform(frames[parentHandle], frames[childHandle], stamp, transform, isStatic);
+                count++;
+                position += TfRecorder.TRANSFORM_RECORD_SIZE;
+            } else if (type == TfRecorder.STATIC_RECORD) {
+                if (available < TfRecorder.STATIC_RECORD_SIZE) break;
+                int childHandle = view.getInt(data);
+                int parentHandle = view.getInt(data + 4);
+                if (childHandle < 0 || childHandle >= frameCount || parentHandle < 0 || parentHandle >= frameCount) break;
+                boolean isStatic = view.get(data + 8) != 0;
+                
+                if (speed > 0 && !waitUntil(startTime + (long) (receiveTime / speed))) break;
+                listener.setStatic(frames[parentHandle].getFrameID(), frames[childHandle].getFrameID(), isStatic);
+                position += TfRecorder.STATIC_RECORD_SIZE;
+            } else if (type == TfRecorder.STORAGE_TIME_RECORD) {
+                if (available < TfRecorder.LONG_RECORD_SIZE + 2) break;
+                long storageTime = view.getLong(data);
+                int parentStart = data + 8;
+                int parentLength = view.getShort(parentStart) & 0xffff;
+                int childStart = parentStart + 2 + parentLength;
+                if (limit - childStart < 2) break;
+                int childLength = view.getShort(childStart) & 0xffff;
+                int end = childStart + 2 + childLength;
+                if (end > limit) break;
+                String parentPattern = decodeUTF(view, parentStart + 2, parentLength);
+                String childPattern = decodeUTF(view, childStart + 2, childLength);
+                
+                if (speed > 0 && !waitUntil(startTime + (long) (receiveTime / speed))) break;
+                listener.setStorageTime(parentPattern, childPattern, Duration.fromNano(storageTime));
+                position = end;
+            } else if (type == TfRecorder.DEFAULT_STORAGE_TIME_RECORD || type == TfRecorder.MEMORY_BUDGET_RECORD
+                       || type == TfRecorder.DROPPED_RECORD) {
+                if (available < TfRecorder.LONG_RECORD_SIZE) break;
+                long value = view.getLong(data);
+                
+                if (type == TfRecorder.DROPPED_RECORD) {
+                    droppedCount += value;
+                } else {
+                    if (speed > 0 && !waitUntil(startTime + (long) (receiveTime / speed))) break;
+                    if (type == TfRecorder.DEFAULT_STORAGE_TIME_RECORD) {
+                        listener.setDefaultStorageTime(Duration.fromNano(value));
+                    } else {
+                        listener.setMemoryBudget(value);
+                    }
+                }
+                position += TfRecorder.LONG_RECORD_SIZE;
+            } else if (type == TfRecorder.CLEAR_STORAGE_TIMES_RECORD) {
+                if (speed > 0 && !waitUntil(startTime + (long) (receiveTime / speed))) break;
+                listener.clearStorageTimes();
+                position += TfRecorder.RECORD_HEADER_SIZE;
+            } else {
+                // corrupt log
+                break;
+            }
+        }
+        return new Result(count, droppedCount, position == limit);
+    }
+    
+    /**
+     * Sleeps until System.nanoTime() reaches the given time. Returns false if interrupted.
+     */
+    private static boolean waitUntil(long time) {
+        long delay = time - System.nanoTime();
+        if (delay <= 0) return true;
+        try {
+            Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Decodes a string written by DataOutputStream.writeUTF (without its length prefix) from the given
+     * number of bytes of view, starting at position.
+     */
+    private static String decodeUTF(MappedByteBuffer view, int position, int length) {
+        byte[] utf = new byte[length];
+        for(int i = 0; i < length; i++) {
+            utf[i] = view.get(position + i);
+        }
+        char[] chars = new char[utf.length];
+        int n = 0;
+        for(int i = 0; i < utf.length; ) {
+            int b = utf[i] & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+                i += 1;
+            } else if ((b & 0xe0) == 0xc0 && i + 1 < utf.length) {
+                chars[n++] = (char) (((b & 0x1f) << 6) | (utf[i + 1] & 0x3f));
+                i += 2;
+            } else if (i + 2 < utf.length) {
+                chars[n++] = (char) (((b & 0x0f) << 12) | ((utf[i + 1] & 0x3f) << 6) | (utf[i + 2] & 0x3f));
+                i += 3;
+            } else {
+                break;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+    
+}
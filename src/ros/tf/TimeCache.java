@@ -30,31 +30,122 @@
 
 package ros.tf;
 
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
 
 /**
  * Buffer in which transformations from one specific frame to another are stored, ordered in time. 
  * 
+ * Transformations are stored in parallel primitive arrays (one array of time stamps and one array
+ * holding translation and rotation, STRIDE doubles per transform) that are used as a ring buffer.
+ * Data that arrives in order is appended in O(1), old data is evicted by advancing the head of the
+ * ring, and lookups use a binary search on the time stamps. No objects are created per stored transform.
+ * 
+ * A time cache has a single writer (the thread inserting tf data) and may have any number of concurrent
+ * readers. The writer never waits for readers: each write is bracketed by increments of a version counter
+ * (a seqlock). Readers copy what they need, and retry if the version was odd (write in progress) or changed
+ * while they were reading. A volatile counter alone does not order the plain data accesses against it, so
+ * the writer starts a write with an atomic increment, and readers fence their data reads before the
+ * volatile read that validates the version; see endRead. Readers never write to the time cache, so
+ * concurrent lookups do not contend on it. Concurrent calls to insertData must be serialized by the caller.
+ * 
+ * An edge can be static (e.g., a sensor mount): it then holds a single transform that is valid at all times,
+ * and is never evicted or interpolated. Edges are marked static explicitly (setStatic), or, if enabled with
+ * setStaticDetectionSamples, automatically once staticDetectionSamples transforms arrived that all had exactly
+ * the same value. Only edges whose value never changed are detected, so that no history is lost; an
+ * automatically detected static edge becomes dynamic again as soon as a different value arrives.
+ * 
  * @author Sjoerd van den Dries
  * @version Feb 28, 2011
  */
 public class TimeCache {
     
-    /** Map containing the transformations, ordered in time */
-    protected TreeMap<Long, TransformStorage> storage;
+    /** Number of doubles stored per transform: translation (x, y, z) and rotation (x, y, z, w) */
+    protected static final int STRIDE = 7;
+    /** Initial number of transforms that fit in the buffer; must be a power of two */
+    protected static final int INITIAL_CAPACITY = 16;
+    /** Threshold below which two quaternions are linearly interpolated instead of slerped (as in Quat4d) */
+    private static final double SLERP_EPS = 0.000001;
+    /** Default number of unchanged transforms after which an edge is made static (0 = never) */
+    public static final int DEFAULT_STATIC_DETECTION_SAMPLES = 0;
+    /** Smallest capacity limit, so that a limited edge can still interpolate */
+    public static final int MIN_CAPACITY_LIMIT = 2;
+    /** Approximate memory used per transform slot, in bytes */
+    private static final int BYTES_PER_SLOT = 8 * (1 + STRIDE);
+    /** Approximate fixed memory used by a time cache (object and array headers), in bytes */
+    private static final int BYTES_OVERHEAD = 128;
+    
+    /** Time stamps of the transformations, in nanoseconds (ring buffer, ordered in time starting at head) */
+    protected long[] stamps;
+    /** Translations and rotations of the transformations, STRIDE doubles per transform */
+    protected double[] values;
+    /** Physical index of the oldest transform in the ring buffer */
+    protected int head;
+    /** Number of transforms in the buffer */
+    protected int size;
     /** Maximum storage time, in nanoseconds */
     protected long maxStorageTime;
     /** Reference to the parent frame (source frame) */
     protected Frame parentFrame;
     /** Reference to the child frame (target frame) */
     protected Frame childFrame;
+    /** Insert metrics of this edge; updated by the listener */
+    protected final TfMetrics.EdgeMetrics metrics = new TfMetrics.EdgeMetrics();
+    /** Seqlock version; odd while a write is in progress */
+    protected volatile int version;
+    /** Atomic access to version, for the increment that starts a write */
+    private static final AtomicIntegerFieldUpdater<TimeCache> VERSION =
+        AtomicIntegerFieldUpdater.newUpdater(TimeCache.class, "version");
+    /** Number of fence slots; a power of two */
+    private static final int FENCE_SLOTS = 64;
+    /** Distance between two fence slots, in ints, so that each slot has its own cache line */
+    private static final int FENCE_PADDING = 32;
+    /** Slots that readers write to for a fence (see loadFence), selected by thread ID */
+    private static final AtomicIntegerArray FENCES = new AtomicIntegerArray(FENCE_SLOTS * FENCE_PADDING);
+    /** True if this edge is static: it holds a single transform that is valid at all times */
+    protected volatile boolean isStatic;
+    /** True if this edge was made static automatically */
+    protected boolean autoStatic;
+    /** Number of consecutive unchanged transforms after which this edge is made static (0 = never) */
+    protected int staticDetectionSamples = DEFAULT_STATIC_DETECTION_SAMPLES;
+    /** Number of consecutive newest transforms that were equal to their predecessor */
+    private int unchangedCount;
+    /** True once a transform with a different value than its predecessor arrived */
+    private boolean valueChanged;
+    /** Maximum number of transforms in the buffer, a power of two (0 = unlimited, only the storage time applies) */
+    private int capacityLimit;
+    /** Number of transforms evicted because of the capacity limit */
+    private volatile long evictedCount;
+    /**
+     * Approximate number of lookups of this edge. Incremented by readers without synchronization, so
+     * concurrent increments may get lost; it is only used to rank edges for eviction.
+     */
+    private int queryCount;
+    /** Incremented when this edge becomes static or dynamic, or when its static value changes (may be null) */
+    private AtomicInteger staticVersion;
     
     /**
      * Class Constructor.
      */
     public TimeCache(long maxStorageTime, Frame parentFrame, Frame childFrame) {
+        this(maxStorageTime, parentFrame, childFrame, null);
+    }
+    
+    /**
+     * Class Constructor. The given static version counter is incremented whenever this edge becomes
+     * static or dynamic, or the value of the static edge changes, since this invalidates precomposed paths.
+     */
+    public TimeCache(long maxStorageTime, Frame parentFrame, Frame childFrame, AtomicInteger staticVersion) {
+        this.staticVersion = staticVersion;
         this.maxStorageTime = maxStorageTime;
-        this.storage = new TreeMap<Long, TransformStorage>();
+        this.stamps = new long[INITIAL_CAPACITY];
+        this.values = new double[INITIAL_CAPACITY * STRIDE];
+        this.head = 0;
+        this.size = 0;
         this.parentFrame = parentFrame;
         this.childFrame = childFrame;
     }
@@ -63,17 +154,247 @@ public class TimeCache {
      * Inserts transformation newData in the buffer, while maintaining the time ordering. 
      */
     public boolean insertData(TransformStorage newData) {  
+        return insertData(newData.getTimeStamp(),
+                          newData.translation.x, newData.translation.y, newData.translation.z,
+                          newData.rotation.x, newData.rotation.y, newData.rotation.z, newData.rotation.w);
+    }
+    
+    /**
+     * Inserts the transformation given by its components in the buffer, while maintaining the time ordering.
+     * A transformation with the same time stamp as an existing one replaces it.
+     */
+    public boolean insertData(long timeStamp, double tx, double ty, double tz,
+                              double qx, double qy, double qz, double qw) {
+        if (isStatic) {
+            boolean changed = size == 0 || !equalsSlot(head, tx, ty, tz, qx, qy, qz, qw);
+            if (!changed || !autoStatic) {
+                // static edge: (re)place the single transform
+                beginWrite();
+                stamps[head] = (size == 0) ? timeStamp : Math.max(stamps[head], timeStamp);
+                size = 1;
+                setSlot(head, tx, ty, tz, qx, qy, qz, qw);
+                endWrite();
+                if (changed) staticChanged();
+                return true;
+            }
+            // value of an automatically detected static edge changed: it is dynamic after all
+            setDynamic();
+        }
+        
         // check if data is older than first frame in STORAGE - maxStorageTime
-        if (!storage.isEmpty() && storage.firstKey() - maxStorageTime > newData.getTimeStamp()) {
+        if (size > 0 && stamps[head] - maxStorageTime > timeStamp) {
             return false;                              
         }
         
-        storage.put(newData.getTimeStamp(), newData);       
+        beginWrite();
+        
+        int index;
+        boolean full = capacityLimit > 0 && size >= capacityLimit;
+        if (size == 0 || timeStamp > stamps[slot(size - 1)]) {
+            // in-order data: append at the end of the ring
+            if (size > 0 && equalsSlot(slot(size - 1), tx, ty, tz, qx, qy, qz, qw)) {
+                unchangedCount++;
+            } else {
+                if (size > 0) valueChanged = true;
+                unchangedCount = 0;
+            }
+            index = makeRoom(size);
+        } else {
+            valueChanged = true;
+            unchangedCount = 0;
+            // out-of-order data: find position, replace an equal stamp or shift newer data up
+            index = lowerBound(timeStamp);
+            if (index >= size || stamps[slot(index)] != timeStamp) {
+                if (full && index == 0) {
+                    // older than everything in a buffer that is full: it would be evicted right away
+                    endWrite();
+                    return false;
+                }
+                index = makeRoom(index);
+            }
+        }
+        
+        int s = slot(index);
+        stamps[s] = timeStamp;
+        setSlot(s, tx, ty, tz, qx, qy, qz, qw);
         
         removeOldData(); // same as pruneList in time_cache.h        
+        
+        endWrite();
+        
+        if (staticDetectionSamples > 0 && !valueChanged && unchangedCount >= staticDetectionSamples) {
+            makeStatic(true);
+        }
         return true;
+    }
+    
+    /**
+     * Marks this edge as static or dynamic. A static edge keeps only its newest transform, which is
+     * used for all times. Must only be called by the writer.
+     */
+    public void setStatic(boolean isStatic) {
+        if (isStatic) {
+            makeStatic(false);
+        } else if (this.isStatic) {
+            setDynamic();
+        }
+    }
+    
+    /**
+     * Returns true if this edge is static.
+     */
+    public boolean isStatic() {
+        return isStatic;
+    }
+    
+    /**
+     * Sets the number of unchanged transforms after which this edge is automatically made static, if its
+     * value never changed; 0 (the default) disables automatic detection.
+     */
+    public void setStaticDetectionSamples(int samples) {
+        this.staticDetectionSamples = samples;
+    }
+    
+    /**
+     * Makes this edge static, keeping only the newest transform in a buffer of capacity one.
+     */
+    private void makeStatic(boolean auto) {
+        if (this.isStatic) {
+            autoStatic = autoStatic && auto;
+            return;
+        }
+        beginWrite();
+        long[] newStamps = new long[1];
+        double[] newValues = new double[STRIDE];
+        if (size > 0) {
+            int newest = slot(size - 1);
+            newStamps[0] = stamps[newest];
+            System.arraycopy(values, newest * STRIDE, newValues, 0, STRIDE);
+        }
+        stamps = newStamps;
+        values = newValues;
+        head = 0;
+        size = Math.min(size, 1);
+        isStatic = true;
+        autoStatic = auto;
+        endWrite();
+        staticChanged();
+    }
+    
+    /**
+     * Makes this static edge dynamic again; its transform is kept as the first entry of the buffer.
+     */
+    private void setDynamic() {
+        beginWrite();
+        isStatic = false;
+        autoStatic = false;
+        unchangedCount = 0;
+        valueChanged = true;
+        endWrite();
+        staticChanged();
     }    
 
+    /**
+     * Sets the storage time (horizon) of this edge, in nanoseconds, and removes data older than the new
+     * horizon right away. Must only be called by the writer.
+     */
+    public void setMaxStorageTime(long maxStorageTime) {
+        beginWrite();
+        this.maxStorageTime = maxStorageTime;
+        removeOldData();
+        endWrite();
+    }
+    
+    /**
+     * Returns the storage time (horizon) of this edge, in nanoseconds.
+     */
+    public long getMaxStorageTime() {
+        return maxStorageTime;
+    }
+    
+    /**
+     * Limits the number of transforms in the buffer to the given number, rounded up to a power of two
+     * of at least MIN_CAPACITY_LIMIT (0 = unlimited). If the buffer holds more transforms, the oldest
+     * are evicted and the buffer is shrunk. When the buffer is full, inserting new data evicts the
+     * oldest transform, even if it is within the storage time. Must only be called by the writer.
+     */
+    public void setCapacityLimit(int limit) {
+        if (limit <= 0) {
+            capacityLimit = 0;
+            return;
+        }
+        int capacity = MIN_CAPACITY_LIMIT;
+        while (capacity < limit) capacity <<= 1;
+        capacityLimit = capacity;
+        if (isStatic || stamps.length <= capacity) return;
+        
+        beginWrite();
+        if (size > capacity) {
+            int evicted = size - capacity;
+            head = (head + evicted) & (stamps.length - 1);
+            size = capacity;
+            evictedCount += evicted;
+        }
+        resize(capacity);
+        endWrite();
+    }
+    
+    /**
+     * Returns the capacity limit of the buffer, or 0 if it is unlimited.
+     */
+    public int getCapacityLimit() {
+        return capacityLimit;
+    }
+    
+    /**
+     * Returns the current capacity of the buffer, in transforms.
+     */
+    public int getCapacity() {
+        return stamps.length;
+    }
+    
+    /**
+     * Returns the approximate memory used by this edge, in bytes.
+     */
+    public long getMemoryUsage() {
+        return BYTES_OVERHEAD + (long) stamps.length * BYTES_PER_SLOT;
+    }
+    
+    /**
+     * Returns the number of transforms evicted because of the capacity limit.
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+    
+    /**
+     * Returns the approximate number of lookups of this edge since the last call to decayQueryCount.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+    
+    /**
+     * Halves the query count, so that it reflects recent use.
+     */
+    public void decayQueryCount() {
+        queryCount >>= 1;
+    }
+    
+    /**
+     * Returns the time stamp of the oldest transform in this buffer, in nanoseconds, or -1 if it is empty.
+     */
+    public long getOldestTimeStamp() {
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            int size = this.size;
+            if (!isConsistent(stamps, this.values, size)) continue;
+            long result = (size == 0) ? -1 : stamps[this.head & (stamps.length - 1)];
+            if (endRead(v)) return result;
+        }
+    }
+    
     /**
      * Returns the transformation in this buffer at time point time (in nanoseconds);
      * Uses interpolation or (forward or backward) extrapolation.
@@ -83,36 +404,68 @@ public class TimeCache {
      * 
      */
     public TransformStorage getData(long time) {       
-        
-        if (storage.isEmpty()) {
+        TransformStorage out = new TransformStorage(new Vector3d(), new Quat4d(), time, parentFrame, childFrame);
+        if (!getData(time, out)) {
             // TODO: throw error: "Cache for frame " + parentFrame.getFrameID() + " to " + childFrame.getFrameID() + " is empty";
             return null;
-        } else if (storage.size() == 1) {
-            // only one transform in cache, so return that one
-            return storage.firstEntry().getValue();
-        }        
-        
-        TransformStorage low, high;        
-        
-        if (time < storage.firstKey()) {
-            // extrapolate back: low = oldest transform
-            //                   high = oldest but one 
-            low = storage.firstEntry().getValue();                     // O(1) (I guess?)
-            high = storage.higherEntry(storage.firstKey()).getValue(); // O(log n) --> can be done in O(1), but how?
-        } else if (time > storage.lastKey()) {
-            // extrapolate forward: low = newest but one
-            //                      high = newest transform        
-            low = storage.lowerEntry(storage.lastKey()).getValue();    // O(log n) --> can be done in O(1), but how?
-            high = storage.lastEntry().getValue();                     // O(1) (I guess?)
-        } else {
-            // interpolate: low = newest transform older than time,
-            //              high = oldest transform newer than time
-            low = storage.ceilingEntry(time).getValue();
-            high = storage.floorEntry(time).getValue();
-        } 
-
-        return TransformStorage.interpolate(low, high, time);
+        }
+        return out;
+    }
     
+    /**
+     * Same as {@link #getData(long)}, but stores the transformation in out instead of creating a new
+     * object. Returns false if the buffer is empty.
+     */
+    public boolean getData(long time, TransformStorage out) {
+        queryCount++;
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            double[] values = this.values;
+            int size = this.size;
+            boolean isStatic = this.isStatic;
+            if (!isConsistent(stamps, values, size)) continue;
+            int mask = stamps.length - 1;
+            int head = this.head & mask;
+            
+            if (size == 0) {
+                if (endRead(v)) return false;
+                continue;
+            } else if (size == 1 || isStatic) {
+                // only one transform in cache (or a static edge), so return that one
+                copy(values, head, isStatic ? time : stamps[head], out);
+                if (endRead(v)) return true;
+                continue;
+            }
+            
+            int low, high;
+            
+            if (time < stamps[head]) {
+                // extrapolate back: low = oldest transform
+                //                   high = oldest but one 
+                low = head;
+                high = (head + 1) & mask;
+            } else if (time > stamps[(head + size - 1) & mask]) {
+                // extrapolate forward: low = newest but one
+                //                      high = newest transform        
+                low = (head + size - 2) & mask;
+                high = (head + size - 1) & mask;
+            } else {
+                // interpolate: low = newest transform older than time,
+                //              high = oldest transform newer than time
+                int index = lowerBound(stamps, head, size, time);
+                high = (head + index) & mask;
+                if (stamps[high] == time) {
+                    copy(values, high, time, out);
+                    if (endRead(v)) return true;
+                    continue;
+                }
+                low = (head + index - 1) & mask;
+            }
+            
+            interpolate(stamps, values, low, high, time, out);
+            if (endRead(v)) return true;
+        }
     } 
     
     /**
@@ -120,24 +473,401 @@ public class TimeCache {
      * time point, in nanoseconds.
      */
     public long timeToNearestTransform(long time) {    
-        Long floor = storage.floorKey(time);
-        Long ceiling = storage.ceilingKey(time);
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            int size = this.size;
+            if (!isConsistent(stamps, this.values, size)) continue;
+            int mask = stamps.length - 1;
+            int head = this.head & mask;
+            
+            long result;
+            if (size == 0) {
+                result = Long.MAX_VALUE;
+            } else if (this.isStatic) {
+                // a static transform is valid at all times
+                result = 0;
+            } else {
+                int ceiling = lowerBound(stamps, head, size, time);
+                if (ceiling == 0) {
+                    result = stamps[head] - time;
+                } else {
+                    long floor = stamps[(head + ceiling - 1) & mask];
+                    if (ceiling == size) {
+                        result = time - floor;
+                    } else {
+                        result = Math.min(stamps[(head + ceiling) & mask] - time, time - floor);
+                    }
+                }
+            }
+            if (endRead(v)) return result;
+        }
+    }
+    
+    /**
+     * Returns a cursor over a copy of the transforms needed for lookups in the time range [start, end]:
+     * the transforms within the range plus the nearest one on either side. Returns null if the buffer is
+     * empty. The copy is consistent, and later inserts do not affect it.
+     */
+    public Cursor cursor(long start, long end) {
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            double[] values = this.values;
+            int size = this.size;
+            boolean isStatic = this.isStatic;
+            if (!isConsistent(stamps, values, size)) continue;
+            int mask = stamps.length - 1;
+            int head = this.head & mask;
+            
+            if (size == 0) {
+                if (endRead(v)) return null;
+                continue;
+            }
+            int first = 0, last = 0;
+            if (!isStatic && size >= 2) {
+                // keep at least two transforms, so that times outside the buffer are extrapolated like getData
+                first = Math.max(0, Math.min(lowerBound(stamps, head, size, start) - 1, size - 2));
+                last = Math.max(Math.min(size - 1, lowerBound(stamps, head, size, end)), first + 1);
+            }
+            int n = last - first + 1;
+            long[] cursorStamps = new long[n];
+            double[] cursorValues = new double[n * STRIDE];
+            for (int i = 0; i < n; i++) {
+                int s = (head + first + i) & mask;
+                cursorStamps[i] = stamps[s];
+                System.arraycopy(values, s * STRIDE, cursorValues, i * STRIDE, STRIDE);
+            }
+            if (endRead(v)) return new Cursor(this, cursorStamps, cursorValues, isStatic);
+        }
+    }
+    
+    /**
+     * Copy of a time range of a buffer, for lookups at non-decreasing times: every lookup continues the
+     * search where the previous one ended, so a series of lookups takes time linear in its length.
+     */
+    public static class Cursor {
+        /** Buffer the transforms were copied from */
+        private final TimeCache cache;
+        /** Time stamps of the copied transforms, in nanoseconds, ascending */
+        final long[] stamps;
+        /** Copied transforms, STRIDE doubles per transform */
+        private final double[] values;
+        /** True if the buffer is a static edge */
+        final boolean isStatic;
+        /** Index of the transform at or before the last lookup time */
+        private int index;
         
-        if (floor == null) return (ceiling - time);
-        if (ceiling == null) return (time - floor);
-        return Math.min(ceiling - time, time - floor);
+        Cursor(TimeCache cache, long[] stamps, double[] values, boolean isStatic) {
+            this.cache = cache;
+            this.stamps = stamps;
+            this.values = values;
+            this.isStatic = isStatic;
+        }
+        
+        /**
+         * Stores the transform at the given time in out, inter- or extrapolating like getData. The time
+         * must not be smaller than that of the previous call.
+         */
+        public void get(long time, TransformStorage out) {
+            int size = stamps.length;
+            if (size == 1 || isStatic) {
+                cache.copy(values, 0, isStatic ? time : stamps[0], out);
+                return;
+            }
+            while (index < size - 2 && stamps[index + 1] <= time) {
+                index++;
+            }
+            cache.interpolate(stamps, values, index, index + 1, time, out);
+        }
+    }
+    
+    /**
+     * Returns true if the given time (in nanoseconds) lies within the time range of this buffer, i.e.,
+     * a transform at that time can be found without extrapolation. Always true for a non-empty static edge.
+     */
+    public boolean covers(long time) {
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            int size = this.size;
+            if (!isConsistent(stamps, this.values, size)) continue;
+            int mask = stamps.length - 1;
+            int head = this.head & mask;
+            
+            boolean result = size > 0
+                && (this.isStatic || (stamps[head] <= time && time <= stamps[(head + size - 1) & mask]));
+            if (endRead(v)) return result;
+        }
+    }
+    
+    /**
+     * Returns the time stamp of the newest transform in this buffer, in nanoseconds, or -1 if it is empty.
+     */
+    public long getNewestTimeStamp() {
+        while (true) {
+            int v = beginRead();
+            long[] stamps = this.stamps;
+            int size = this.size;
+            if (!isConsistent(stamps, this.values, size)) continue;
+            int mask = stamps.length - 1;
+            long result = (size == 0) ? -1 : stamps[(this.head + size - 1) & mask];
+            if (endRead(v)) return result;
+        }
+    }
+    
+    /**
+     * Returns the number of transforms in this buffer.
+     */
+    public int size() {
+        return size;
     }
     
     /**
      * Removes all transforms that are more than maxStorageTime older than the newest transform.
      */
     protected void removeOldData() {
-        if (!storage.isEmpty()) {
-            long timeLowerbound = storage.lastKey() - maxStorageTime;
-            while (!storage.isEmpty() && storage.firstKey() < timeLowerbound) {
-                storage.pollFirstEntry();
+        if (size > 0 && !isStatic) {
+            long timeLowerbound = stamps[slot(size - 1)] - maxStorageTime;
+            while (size > 0 && stamps[head] < timeLowerbound) {
+                head = (head + 1) & (stamps.length - 1);
+                size--;
             }       
         }
     }     
     
+    /**
+     * Interpolates between or extrapolates from the transforms in physical slots low and high, and
+     * stores the result in out. Translation is interpolated linearly, rotation using slerp. 
+     */
+    protected void interpolate(long[] stamps, double[] values, int low, int high, long time, TransformStorage out) {
+        long time1 = stamps[low];
+        long time2 = stamps[high];
+        int a = low * STRIDE;
+        int b = high * STRIDE;
+        
+        // calculate the ratio (stamps are unique; a torn read is discarded by the caller)
+        double ratio = (double)(time - time1) / (time2 - time1);
+        
+        // interpolate translation
+        out.translation.x = values[a]     + ratio * (values[b]     - values[a]);
+        out.translation.y = values[a + 1] + ratio * (values[b + 1] - values[a + 1]);
+        out.translation.z = values[a + 2] + ratio * (values[b + 2] - values[a + 2]);
+        
+        // interpolate rotation (same as Quat4d.interpolate)
+        double x1 = values[a + 3], y1 = values[a + 4], z1 = values[a + 5], w1 = values[a + 6];
+        double x2 = values[b + 3], y2 = values[b + 4], z2 = values[b + 5], w2 = values[b + 6];
+        double dot = x1 * x2 + y1 * y2 + z1 * z2 + w1 * w2;
+        if (dot < 0) {
+            x1 = -x1; y1 = -y1; z1 = -z1; w1 = -w1;
+            dot = -dot;
+        }
+        double s1, s2;
+        if ((1.0 - dot) > SLERP_EPS) {
+            double om = Math.acos(dot);
+            double sinom = Math.sin(om);
+            s1 = Math.sin((1.0 - ratio) * om) / sinom;
+            s2 = Math.sin(ratio * om) / sinom;
+        } else {
+            s1 = 1.0 - ratio;
+            s2 = ratio;
+        }
+        out.rotation.x = s1 * x1 + s2 * x2;
+        out.rotation.y = s1 * y1 + s2 * y2;
+        out.rotation.z = s1 * z1 + s2 * z2;
+        out.rotation.w = s1 * w1 + s2 * w2;
+        
+        // original tf implementation (see cache.cpp) does not 'interpolate' timestamp. I do.
+        out.timeStamp = time;
+        out.parentFrame = parentFrame;
+        out.childFrame = childFrame;
+    }
+    
+    /**
+     * Stores the given transform in physical slot s.
+     */
+    private void setSlot(int s, double tx, double ty, double tz, double qx, double qy, double qz, double qw) {
+        int v = s * STRIDE;
+        values[v]     = tx;
+        values[v + 1] = ty;
+        values[v + 2] = tz;
+        values[v + 3] = qx;
+        values[v + 4] = qy;
+        values[v + 5] = qz;
+        values[v + 6] = qw;
+    }
+    
+    /**
+     * Returns true if the transform in physical slot s has exactly the given value.
+     */
+    private boolean equalsSlot(int s, double tx, double ty, double tz, double qx, double qy, double qz, double qw) {
+        int v = s * STRIDE;
+        return values[v] == tx && values[v + 1] == ty && values[v + 2] == tz
+            && values[v + 3] == qx && values[v + 4] == qy && values[v + 5] == qz && values[v + 6] == qw;
+    }
+    
+    /**
+     * Increments the static version counter, if any.
+     */
+    private void staticChanged() {
+        if (staticVersion != null) staticVersion.incrementAndGet();
+    }
+    
+    /**
+     * Copies the transform in physical slot s into out.
+     */
+    private void copy(double[] values, int s, long timeStamp, TransformStorage out) {
+        int v = s * STRIDE;
+        out.translation.x = values[v];
+        out.translation.y = values[v + 1];
+        out.translation.z = values[v + 2];
+        out.rotation.x = values[v + 3];
+        out.rotation.y = values[v + 4];
+        out.rotation.z = values[v + 5];
+        out.rotation.w = values[v + 6];
+        out.timeStamp = timeStamp;
+        out.parentFrame = parentFrame;
+        out.childFrame = childFrame;
+    }
+    
+    /**
+     * Returns the physical index in the ring buffer of the transform with logical index i (0 = oldest).
+     */
+    protected final int slot(int i) {
+        return (head + i) & (stamps.length - 1);
+    }
+    
+    /**
+     * Returns the logical index of the oldest transform with a time stamp not older than time,
+     * or size if there is no such transform.
+     */
+    protected int lowerBound(long time) {
+        return lowerBound(stamps, head, size, time);
+    }
+    
+    /**
+     * Binary search on the given snapshot of the ring buffer; see {@link #lowerBound(long)}.
+     */
+    private static int lowerBound(long[] stamps, int head, int size, long time) {
+        int mask = stamps.length - 1;
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (stamps[(head + mid) & mask] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /**
+     * Marks the start of a write. Only called by the (single) writer. The atomic increment is a full
+     * barrier, so none of the data writes that follow can become visible before the odd version.
+     */
+    private void beginWrite() {
+        VERSION.getAndIncrement(this);
+    }
+    
+    /**
+     * Marks the end of a write, publishing all changes to readers (a volatile write orders all
+     * preceding writes before it).
+     */
+    private void endWrite() {
+        version++;
+    }
+    
+    /**
+     * Waits until no write is in progress and returns the version to validate the read against. The
+     * volatile read orders the data reads that follow after it, so they see at least the writes that
+     * ended with version v.
+     */
+    private int beginRead() {
+        int v = version;
+        while ((v & 1) != 0) {
+            Thread.yield();
+            v = version;
+        }
+        return v;
+    }
+    
+    /**
+     * Returns true if no write took place since beginRead returned version v. This is the usual seqlock
+     * read side: a load fence, then a plain volatile read of the version. A volatile read alone would let
+     * the preceding data reads be reordered after it. With the fence, a data read that saw a write of the
+     * writer also sees the odd version that the writer stored before that write (see beginWrite), so the
+     * version read after the fence differs from v and the read is retried.
+     */
+    private boolean endRead(int v) {
+        loadFence();
+        return version == v;
+    }
+    
+    /**
+     * Orders all preceding reads before all following reads. Java 6 and Android have no fence methods,
+     * but JVMs implement a volatile write with a trailing StoreLoad barrier (see the JSR-133 cookbook),
+     * which is a full fence: a locked instruction on x86, dmb on ARM. The write goes to a slot of the calling thread,
+     * not to the time cache, so concurrent readers do not share a written cache line unless their
+     * thread IDs collide.
+     */
+    private static void loadFence() {
+        FENCES.set((int) (Thread.currentThread().getId() & (FENCE_SLOTS - 1)) * FENCE_PADDING, 0);
+    }
+    
+    /**
+     * Returns true if a snapshot of the buffer fields can be safely indexed. A snapshot taken during
+     * a write (while the arrays are being replaced) can be inconsistent; it is retried.
+     */
+    private static boolean isConsistent(long[] stamps, double[] values, int size) {
+        return values.length == stamps.length * STRIDE && size <= stamps.length;
+    }
+    
+    /**
+     * Makes room for a new transform at logical index, shifting all newer transforms up by one
+     * and growing the buffer if it is full, or evicting the oldest transform if the buffer is at its
+     * capacity limit. Increments size (unless a transform was evicted) and returns the logical index
+     * of the new transform, which is one lower if a transform was evicted.
+     */
+    private int makeRoom(int index) {
+        if (size == stamps.length) {
+            if (capacityLimit > 0 && stamps.length >= capacityLimit) {
+                // buffer is at its limit: evict the oldest transform
+                head = (head + 1) & (stamps.length - 1);
+                size--;
+                index--;
+                evictedCount++;
+            } else {
+                resize(stamps.length * 2);
+            }
+        }
+        int mask = stamps.length - 1;
+        for (int i = size; i > index; i--) {
+            int to = (head + i) & mask;
+            int from = (head + i - 1) & mask;
+            stamps[to] = stamps[from];
+            System.arraycopy(values, from * STRIDE, values, to * STRIDE, STRIDE);
+        }
+        size++;
+        return index;
+    }
+    
+    /**
+     * Changes the capacity of the buffer to the given power of two (at least size), moving the oldest
+     * transform to physical index 0.
+     */
+    private void resize(int capacity) {
+        long[] newStamps = new long[capacity];
+        double[] newValues = new double[capacity * STRIDE];
+        int firstPart = Math.min(size, stamps.length - head);
+        int secondPart = size - firstPart;
+        System.arraycopy(stamps, head, newStamps, 0, firstPart);
+        System.arraycopy(stamps, 0, newStamps, firstPart, secondPart);
+        System.arraycopy(values, head * STRIDE, newValues, 0, firstPart * STRIDE);
+        System.arraycopy(values, 0, newValues, firstPart * STRIDE, secondPart * STRIDE);
+        stamps = newStamps;
+        values = newValues;
+        head = 0;
+    }
+    
 }
@@ -37,6 +37,9 @@ import org.ros.message.Time;
  * TransformChangeDetector takes a TfListener and provides a function
  * which checks to see if a given transform has changed since a
  * previous check.
+ *
+ * To be notified of changes instead of polling, use
+ * {@link TfListener#subscribeTransform}.
  */
 public class TransformChangeDetector {
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ros.message.Time;
+
+/**
+ * Pending result of {@link TfListener#waitForTransform}. The future completes as soon as the transform
+ * from source frame to target frame can be computed at the requested time without extrapolation, or when
+ * the request times out (in which case the result is null).
+ * 
+ * Completion happens on the thread that inserts the tf data (or on the listener's timer thread for time-outs),
+ * which is also the thread that invokes the callback, if any. Callbacks should therefore return quickly.
+ */
+public class TransformFuture extends PathWatcher implements Future<StampedTransform> {
+    
+    /**
+     * Callback invoked when a TransformFuture completes.
+     */
+    public interface Callback {
+        /** Called with the requested transform once it is available. */
+        public void onTransform(StampedTransform transform);
+        /** Called when the transform did not become available within the time-out. */
+        public void onTimeout();
+    }
+    
+    /** Requested time */
+    final Time time;
+    /** Listener the request is pending at */
+    private final TfListener listener;
+    /** Callback to invoke on completion, may be null */
+    private final Callback callback;
+    /** Released on completion */
+    private final CountDownLatch latch = new CountDownLatch(1);
+    /** Result; null if timed out or cancelled */
+    private volatile StampedTransform result;
+    /** True once completed, timed out or cancelled */
+    private boolean done;
+    /** True if cancelled */
+    private volatile boolean cancelled;
+    /** Task that times out this request, if any */
+    TimerTask timeoutTask;
+    
+    /**
+     * Class constructor; only used by TfListener.
+     */
+    TransformFuture(TfListener listener, Frame targetFrame, Frame sourceFrame, Time time, Callback callback) {
+        super(targetFrame, sourceFrame);
+        this.listener = listener;
+        this.time = time;
+        this.callback = callback;
+    }
+    
+    @Override
+    long getPathTime() {
+        return time.totalNsecs();
+    }
+    
+    /**
+     * Completes this request if the transform can now be computed without extrapolation.
+     */
+    @Override
+    void edgeChanged(TfListener listener, long stamp) {
+        StampedTransform transform = listener.tryTransform(this);
+        if (transform != null) {
+            listener.removeWatcher(this);
+            complete(transform);
+        }
+    }
+    
+    /**
+     * Completes this request with the given transform; returns false if it was already done.
+     */
+    boolean complete(StampedTransform transform) {
+        synchronized (this) {
+            if (done) return false;
+            done = true;
+            result = transform;
+        }
+        if (timeoutTask != null) timeoutTask.cancel();
+        latch.countDown();
+        if (callback != null) callback.onTransform(transform);
+        return true;
+    }
+    
+    /**
+     * Completes this request without a result because it timed out.
+     */
+    void timeout() {
+        synchronized (this) {
+            if (done) return;
+            done = true;
+        }
+        listener.removeWatcher(this);
+        latch.countDown();
+        if (callback != null) callback.onTimeout();
+    }
+    
+    /**
+     * Cancels this request. The callback is not invoked.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) return false;
+            done = true;
+            cancelled = true;
+        }
+        if (timeoutTask != null) timeoutTask.cancel();
+        listener.removeWatcher(this);
+        latch.countDown();
+        return true;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+    
+    /**
+     * Waits for completion and returns the transform, or null if the request timed out or was cancelled.
+     */
+    @Override
+    public StampedTransform get() throws InterruptedException {
+        latch.await();
+        return result;
+    }
+    
+    /**
+     * Waits at most the given time for completion and returns the transform, or null if the request
+     * timed out or was cancelled. Throws a TimeoutException if the request is still pending.
+     */
+    @Override
+    public StampedTransform get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result;
+    }
+    
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+/**
+ * Series of transforms from a source frame to a target frame at increasing times, as returned by
+ * {@link TfListener#lookupTransformSeries}. The transforms are stored in packed arrays: the time stamp of
+ * sample i is stamps[i], and its translation and rotation are values[i*STRIDE .. i*STRIDE+6], in the order
+ * tx, ty, tz, qx, qy, qz, qw.
+ */
+public class TransformSeries {
+    
+    /** Number of doubles stored per sample */
+    public static final int STRIDE = 7;
+    
+    /** The frame ID of the coordinate frame in which the transforms are defined (source frame) */
+    public final String frameID;
+    /** The frame ID of the coordinate frame into which the transforms map (target frame) */
+    public final String childFrameID;
+    /** Time stamps of the samples, in nanoseconds, ascending */
+    public final long[] stamps;
+    /** Translations and rotations of the samples, STRIDE doubles per sample */
+    public final double[] values;
+    
+    /**
+     * Class constructor; creates a series with the given time stamps and identity transforms.
+     */
+    public TransformSeries(String frameID, String childFrameID, long[] stamps) {
+        this.frameID = frameID;
+        this.childFrameID = childFrameID;
+        this.stamps = stamps;
+        this.values = new double[stamps.length * STRIDE];
+        for(int i = 0; i < stamps.length; i++) {
+            values[i * STRIDE + 6] = 1.0;
+        }
+    }
+    
+    /**
+     * Returns the number of samples.
+     */
+    public int size() {
+        return stamps.length;
+    }
+    
+    /**
+     * Returns the time stamp of sample i, in nanoseconds.
+     */
+    public long getStamp(int i) {
+        return stamps[i];
+    }
+    
+    /**
+     * Stores the transform of sample i in out.
+     */
+    public void get(int i, RigidTransform out) {
+        int v = i * STRIDE;
+        out.tx = values[v];
+        out.ty = values[v + 1];
+        out.tz = values[v + 2];
+        out.qx = values[v + 3];
+        out.qy = values[v + 4];
+        out.qz = values[v + 5];
+        out.qw = values[v + 6];
+    }
+    
+    /**
+     * Sets the transform of sample i.
+     */
+    public void set(int i, RigidTransform t) {
+        int v = i * STRIDE;
+        values[v]     = t.tx;
+        values[v + 1] = t.ty;
+        values[v + 2] = t.tz;
+        values[v + 3] = t.qx;
+        values[v + 4] = t.qy;
+        values[v + 5] = t.qz;
+        values[v + 6] = t.qw;
+    }
+    
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, Willow Garage, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Willow Garage, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ros.tf;
+
+import org.ros.message.Time;
+
+/**
+ * Subscription to changes of the transform between two frames, created by
+ * {@link TfListener#subscribeTransform}. Instead of polling lookupTransform, the subscriber is notified
+ * (on the thread inserting tf data) whenever the transform at the latest time covered by all edges on the
+ * path moved by more than a translation or rotation threshold since the last notification.
+ * 
+ * Notifications are rate limited: a change that arrives too soon after the previous notification is not
+ * dropped, but reported with the first insert on the path after the minimum interval has passed.
+ */
+public class TransformSubscription extends PathWatcher {
+    
+    /**
+     * Callback invoked when the subscribed transform changed.
+     */
+    public interface Callback {
+        /** Called with the new transform; the object is not reused by the listener. */
+        public void onTransformChanged(StampedTransform transform);
+    }
+    
+    /** Translation threshold, in meters */
+    private final double translationEpsilon;
+    /** Rotation threshold, in radians */
+    private final double rotationEpsilon;
+    /** Minimum time between notifications, in nanoseconds */
+    private final long minInterval;
+    /** Callback to notify */
+    private final Callback callback;
+    /** Listener this subscription is registered at */
+    private final TfListener listener;
+    
+    /** Last notified transform, null before the first notification */
+    private RigidTransform lastTransform;
+    /** Time of the last notification (System.nanoTime) */
+    private long lastNotifyTime;
+    /** Scratch transform used for lookups */
+    private final StampedTransform scratch = StampedTransform.getIdentity();
+    /** Time (in nanoseconds) of the last evaluated transform */
+    private long pathTime;
+    /** True once cancelled */
+    private volatile boolean cancelled;
+    
+    /**
+     * Class constructor; only used by TfListener.
+     */
+    TransformSubscription(TfListener listener, Frame targetFrame, Frame sourceFrame, double translationEpsilon,
+                          double rotationEpsilon, double maxRate, Callback callback) {
+        super(targetFrame, sourceFrame);
+        this.listener = listener;
+        this.translationEpsilon = translationEpsilon;
+        this.rotationEpsilon = rotationEpsilon;
+        this.minInterval = (maxRate > 0) ? (long) (1e9 / maxRate) : 0;
+        this.callback = callback;
+    }
+    
+    @Override
+    synchronized long getPathTime() {
+        return pathTime;
+    }
+    
+    /**
+     * Evaluates the transform at the latest common time of the path, and notifies the callback if it
+     * changed by more than the thresholds and the rate limit allows.
+     */
+    @Override
+    void edgeChanged(TfListener listener, long stamp) {
+        StampedTransform changed = null;
+        synchronized (this) {
+            if (cancelled) return;
+            long time = listener.getLatestCommonTime(targetFrame, sourceFrame, stamp);
+            if (time < 0) return;
+            pathTime = time;
+            if (!listener.lookupTransform(targetFrame, sourceFrame, Time.fromNano(time), scratch)) return;
+            
+            RigidTransform transform = scratch.getTransform();
+            if (lastTransform != null && !exceedsThreshold(lastTransform, transform)) return;
+            long now = System.nanoTime();
+            if (lastTransform != null && now - lastNotifyTime < minInterval) return;
+            
+            if (lastTransform == null) lastTransform = new RigidTransform();
+            lastTransform.set(transform);
+            lastNotifyTime = now;
+            changed = StampedTransform.getIdentity();
+            changed.set(scratch);
+        }
+        // invoke outside of the lock, so that the callback may cancel or look up transforms
+        callback.onTransformChanged(changed);
+    }
+    
+    /**
+     * Returns true if b differs from a by more than the translation or rotation threshold.
+     */
+    private boolean exceedsThreshold(RigidTransform a, RigidTransform b) {
+        double dx = b.tx - a.tx, dy = b.ty - a.ty, dz = b.tz - a.tz;
+        if (dx*dx + dy*dy + dz*dz > translationEpsilon*translationEpsilon) return true;
+        double dot = Math.abs(a.qx*b.qx + a.qy*b.qy + a.qz*b.qz + a.qw*b.qw);
+        double angle = 2.0 * Math.acos(Math.min(1.0, dot));
+        return angle > rotationEpsilon;
+    }
+    
+    /**
+     * Stops notifications; the callback is not invoked after this method returns, unless a notification
+     * is being delivered concurrently.
+     */
+    public void cancel() {
+        cancelled = true;
+        listener.removeWatcher(this);
+    }
+    
+    /**
+     * Returns true if this subscription was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+}